@@ -0,0 +1,74 @@
+package com.usbprint.cordova;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Building the commands of a receipt: a compiled template, a table and symbols. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CommandBenchmark {
+
+    private TextEncoder encoder;
+    private ReceiptTemplate template;
+    private JSONObject data;
+    private TableLayout table;
+    private JSONArray rows;
+    private SymbolEncoder symbols;
+
+    @Setup
+    public void setUp() throws Exception {
+        encoder = new TextEncoder("GBK");
+        template = ReceiptTemplate.compile(new JSONArray("[{type: 'text', text: 'Coffee House', align: 'center', size: 2},"
+                + "{type: 'separator'}, {type: 'text', text: 'Order {{orderNo}}', bold: true},"
+                + "{type: 'text', text: '{{items}}'}, {type: 'separator'},"
+                + "{type: 'text', text: 'Total {{total}}', align: 'right', bold: true},"
+                + "{type: 'feed', lines: 3}, {type: 'cut'}]"), "GBK");
+        data = new JSONObject().put("orderNo", "A-1042").put("total", "18.40")
+                .put("items", "2 x Espresso  3.80\r\n1 x 牛角面包  2.90\r\n1 x Latte  3.70");
+        table = TableLayout.compile(new JSONArray("[{width: 20}, {width: 4, align: 'right'},"
+                + "{width: 7, align: 'right'}]"), null);
+        rows = new JSONArray();
+        for (int i = 0; i < 20; i++) {
+            rows.put(new JSONArray().put("Item number " + i + " with a name long enough to wrap").put("2")
+                    .put("12.50"));
+        }
+        symbols = new SymbolEncoder();
+    }
+
+    @Benchmark
+    public ByteBuffer template() {
+        return template.render(data, encoder);
+    }
+
+    @Benchmark
+    public ByteBuffer table() {
+        return table.render(rows, encoder);
+    }
+
+    @Benchmark
+    public ByteBuffer qrCode() throws Exception {
+        return symbols.qrCode("https://example.com/receipt/A-1042", 6, "M", "center", false, 384);
+    }
+
+    @Benchmark
+    public ByteBuffer barcode() throws Exception {
+        return symbols.barcode("CODE128", "A1042-20261018", 2, 80, "below", "center", false, 384);
+    }
+}
@@ -0,0 +1,110 @@
+package com.usbprint.cordova;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link BulkChannel} standing in for a USB bulk OUT endpoint. Writes complete
+ * in submission order. Each one accepts the number of bytes scripted with
+ * {@link #accept(int...)}, or all of them. After a short write, the writes
+ * still outstanding are refused, as a printer with a full buffer does. Once
+ * {@link #stallAfter(int)} writes completed, nothing completes any more.
+ */
+class FakeEndpoint implements BulkChannel {
+
+    private final int packetSize;
+    private final int maxTransfer;
+    private final int maxInFlight;
+    private final ArrayDeque<ByteBuffer> outstanding = new ArrayDeque<ByteBuffer>();
+    private final ArrayDeque<Integer> script = new ArrayDeque<Integer>();
+    private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+    final List<Integer> chunkSizes = new ArrayList<Integer>();
+    int maxOutstanding = 0;
+    int cancels = 0;
+    boolean closed = false;
+    private int refusing = 0;
+    private int completions = 0;
+    private int stallAfter = -1;
+
+    FakeEndpoint(int packetSize, int maxTransfer, int maxInFlight) {
+        this.packetSize = packetSize;
+        this.maxTransfer = maxTransfer;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /** Bytes accepted by the next writes, in order; -1 accepts the whole write. */
+    FakeEndpoint accept(int... counts) {
+        for (int count : counts) {
+            script.add(count);
+        }
+        return this;
+    }
+
+    FakeEndpoint stallAfter(int writes) {
+        this.stallAfter = writes;
+        return this;
+    }
+
+    byte[] received() {
+        return received.toByteArray();
+    }
+
+    public int getMaxPacketSize() {
+        return packetSize;
+    }
+
+    public int getMaxTransferSize() {
+        return maxTransfer;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public void submit(ByteBuffer buffer) {
+        if (buffer.remaining() > maxTransfer) {
+            throw new IllegalArgumentException("Write of " + buffer.remaining() + " bytes above " + maxTransfer);
+        }
+        chunkSizes.add(buffer.remaining());
+        outstanding.add(buffer);
+        maxOutstanding = Math.max(maxOutstanding, outstanding.size());
+    }
+
+    public ByteBuffer awaitCompletion(long timeoutMs) {
+        if (outstanding.isEmpty() || completions == stallAfter) {
+            return null;
+        }
+        completions++;
+        ByteBuffer done = outstanding.poll();
+        int length = done.remaining();
+        int accepted;
+        if (refusing > 0) {
+            refusing--;
+            accepted = 0;
+        } else {
+            Integer scripted = script.poll();
+            accepted = scripted == null || scripted < 0 ? length : Math.min(scripted, length);
+            if (accepted < length) {
+                refusing = outstanding.size();
+            }
+        }
+        byte[] bytes = new byte[accepted];
+        done.duplicate().get(bytes);
+        received.write(bytes, 0, accepted);
+        done.position(done.position() + accepted);
+        return done;
+    }
+
+    public void cancelAll() {
+        cancels++;
+        outstanding.clear();
+    }
+
+    public void close() {
+        cancelAll();
+        closed = true;
+    }
+}
@@ -0,0 +1,93 @@
+package com.usbprint.cordova;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ImageRasterizerTest {
+
+    private static final int WIDTH = 384;
+    private static final int HEIGHT = 300;
+
+    private static int[] photo(int width, int height) {
+        Random random = new Random(7);
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int grey = Math.max(0, Math.min(255, (x + y) * 255 / (width + height) + random.nextInt(64) - 32));
+                pixels[y * width + x] = 0xff000000 | grey << 16 | grey << 8 | grey;
+            }
+        }
+        return pixels;
+    }
+
+    /** Floyd-Steinberg over the whole image at once, packed into rows of bits. */
+    private static byte[] ditherWhole(int[] pixels, int width, int height) {
+        int[] lum = new int[pixels.length];
+        for (int i = 0; i < pixels.length; i++) {
+            lum[i] = pixels[i] & 0xff;
+        }
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = y * width + x;
+                int value = lum[i] < 128 ? 0 : 255;
+                int err = lum[i] - value;
+                lum[i] = value;
+                if (x + 1 < width) {
+                    lum[i + 1] += err * 7 / 16;
+                }
+                if (y + 1 < height) {
+                    if (x > 0) {
+                        lum[i + width - 1] += err * 3 / 16;
+                    }
+                    lum[i + width] += err * 5 / 16;
+                    if (x + 1 < width) {
+                        lum[i + width + 1] += err / 16;
+                    }
+                }
+            }
+        }
+        int widthBytes = (width + 7) / 8;
+        byte[] bits = new byte[widthBytes * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (lum[y * width + x] < 128) {
+                    bits[y * widthBytes + x / 8] |= 0x80 >> (x % 8);
+                }
+            }
+        }
+        return bits;
+    }
+
+    @Test
+    public void dithersBandsLikeTheWholeImage() throws Exception {
+        int[] pixels = photo(WIDTH, HEIGHT);
+        byte[] expected = ditherWhole(pixels, WIDTH, HEIGHT);
+
+        int[] size = new int[2];
+        byte[] bits = ImageRasterizer.bitsOf(ImageRasterizer.rasterize(pixels.clone(), WIDTH, HEIGHT, true), size);
+        assertEquals(WIDTH, size[0]);
+        assertEquals(HEIGHT, size[1]);
+        assertArrayEquals(expected, bits);
+    }
+
+    @Test
+    public void emitsOneRasterCommandPerBand() throws Exception {
+        ByteBuffer raster = ImageRasterizer.rasterize(photo(WIDTH, HEIGHT), WIDTH, HEIGHT, false);
+        int widthBytes = WIDTH / 8;
+        int[] rows = new int[] { 128, 128, 44 };
+        int pos = 0;
+        for (int band : rows) {
+            assertEquals(29, raster.get(pos));
+            assertEquals(118, raster.get(pos + 1));
+            assertEquals(widthBytes, (raster.get(pos + 4) & 0xff) | (raster.get(pos + 5) & 0xff) << 8);
+            assertEquals(band, (raster.get(pos + 6) & 0xff) | (raster.get(pos + 7) & 0xff) << 8);
+            pos += 8 + widthBytes * band;
+        }
+        assertEquals(raster.limit(), pos);
+    }
+}
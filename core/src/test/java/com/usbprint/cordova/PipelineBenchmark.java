@@ -0,0 +1,112 @@
+package com.usbprint.cordova;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Receipts printed per minute through a printer's queue: each job renders a
+ * template and a 20 row table and sends them. Pipelined jobs render while the
+ * previous job is transmitted, so on a transport as slow as a USB full speed
+ * printer they should approach the transport's rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MINUTES)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PipelineBenchmark {
+
+    private static final int JOBS = 48;
+
+    @Param({ "false", "true" })
+    public boolean pipelined;
+
+    @Param({ "loopback", "usb" })
+    public String transport;
+
+    private Printer printer;
+    private ReceiptTemplate template;
+    private JSONObject data;
+    private TableLayout table;
+    private JSONArray rows;
+
+    /** Loopback taking as long as a printer reading about 1 MB/s. */
+    static class ThrottledTransport extends LoopbackTransport {
+
+        ThrottledTransport() {
+            super(true);
+        }
+
+        @Override
+        public synchronized int write(ByteBuffer data) {
+            LockSupport.parkNanos(data.remaining() * 1000L);
+            return super.write(data);
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        printer = new Printer("bench", transport.equals("usb") ? new ThrottledTransport() : new LoopbackTransport(true));
+        template = ReceiptTemplate.compile(new JSONArray("[{type: 'text', text: 'Coffee House', align: 'center',"
+                + "size: 2}, {type: 'separator'}, {type: 'text', text: 'Order {{orderNo}}', bold: true}]"), "GBK");
+        data = new JSONObject().put("orderNo", "A-1042");
+        table = TableLayout.compile(new JSONArray("[{width: 20}, {width: 4, align: 'right'},"
+                + "{width: 7, align: 'right'}]"), null);
+        rows = new JSONArray();
+        for (int i = 0; i < 20; i++) {
+            rows.put(new JSONArray().put("Item number " + i + " with a name long enough to wrap").put("2")
+                    .put("12.50"));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        printer.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(JOBS)
+    public void receipts() throws Exception {
+        final CountDownLatch done = new CountDownLatch(JOBS);
+        PluginCallback callback = new PluginCallback() {
+            public void success(Object message, boolean keep) {
+                if (!keep) {
+                    done.countDown();
+                }
+            }
+
+            public void error(String message) {
+                throw new IllegalStateException(message);
+            }
+        };
+        for (int i = 0; i < JOBS; i++) {
+            printer.submit(new PrintJob(callback, pipelined) {
+                protected Object execute(Printer p) throws Exception {
+                    p.sendTemplate(template, data);
+                    p.sendTable(table, rows, "GBK");
+                    return "Printed";
+                }
+            });
+        }
+        done.await();
+    }
+}
@@ -0,0 +1,120 @@
+package com.usbprint.cordova;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class PreemptionTest {
+
+    private static final byte[] DRAWER_KICK = new byte[] { 27, 112, 0, 64, 80 };
+    private static final int BAND = 8 + 48 * 128;
+
+    /** Loopback which takes a while for every write, like a printer with a full buffer. */
+    private static class SlowTransport extends LoopbackTransport {
+        SlowTransport() {
+            super(false);
+        }
+
+        @Override
+        public synchronized int write(ByteBuffer data) {
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException exp) {
+                Thread.currentThread().interrupt();
+            }
+            return super.write(data);
+        }
+    }
+
+    private static class Recorder implements PluginCallback {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile String error = null;
+
+        public void success(Object message, boolean keep) {
+            if (!keep) {
+                done.countDown();
+            }
+        }
+
+        public void error(String message) {
+            error = message;
+            done.countDown();
+        }
+    }
+
+    /** Eight black bands of 384 x 128 dots, 6 KB each, so 16 KB segments end inside a band. */
+    private static ByteBuffer raster() throws Exception {
+        int[] pixels = new int[384 * 1024];
+        Arrays.fill(pixels, 0xff000000);
+        return ImageRasterizer.rasterize(pixels, 384, 1024, false);
+    }
+
+    private static PrintJob image(Recorder callback, final ByteBuffer raster) {
+        return new PrintJob(callback) {
+            protected Object execute(Printer p) throws Exception {
+                p.sendRaster(raster);
+                return "Printed";
+            }
+        };
+    }
+
+    private static void awaitOutput(LoopbackTransport transport) throws InterruptedException {
+        while (transport.getBytesWritten() == 0) {
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void urgentJobRunsBetweenTwoBands() throws Exception {
+        SlowTransport transport = new SlowTransport();
+        Printer printer = new Printer("preempt", transport);
+        Recorder print = new Recorder();
+        printer.submit(image(print, raster()));
+        awaitOutput(transport);
+        Recorder drawer = new Recorder();
+        printer.submit(new PrintJob(drawer) {
+            protected Object execute(Printer p) throws Exception {
+                p.sendByte(DRAWER_KICK);
+                return "Opened";
+            }
+        }.setPriority(PrintJob.PRIORITY_HIGH));
+
+        assertTrue(print.done.await(10, TimeUnit.SECONDS));
+        assertTrue(drawer.done.await(10, TimeUnit.SECONDS));
+        byte[] out = transport.toByteArray();
+        assertEquals(8 * BAND + DRAWER_KICK.length, out.length);
+        int at = -1;
+        for (int i = 0; i + DRAWER_KICK.length <= out.length && at < 0; i++) {
+            if (Arrays.equals(DRAWER_KICK, Arrays.copyOfRange(out, i, i + DRAWER_KICK.length))) {
+                at = i;
+            }
+        }
+        assertTrue("drawer kick at " + at, at > 0 && at % BAND == 0 && at < 8 * BAND);
+        printer.close();
+    }
+
+    @Test
+    public void cancelStopsAtABandAndResets() throws Exception {
+        SlowTransport transport = new SlowTransport();
+        Printer printer = new Printer("cancel", transport);
+        Recorder print = new Recorder();
+        int jobId = printer.submit(image(print, raster()));
+        awaitOutput(transport);
+        assertTrue(printer.cancel(jobId));
+
+        assertTrue(print.done.await(10, TimeUnit.SECONDS));
+        assertEquals(PrintJob.CANCELLED, print.error);
+        byte[] out = transport.toByteArray();
+        int printed = out.length - 2;
+        assertTrue("reset after " + printed + " bytes", printed > 0 && printed % BAND == 0 && printed < 8 * BAND);
+        assertEquals(27, out[printed]);
+        assertEquals(64, out[printed + 1]);
+        printer.close();
+    }
+}
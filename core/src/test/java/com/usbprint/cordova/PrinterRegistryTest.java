@@ -0,0 +1,145 @@
+package com.usbprint.cordova;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class PrinterRegistryTest {
+
+    /** Stands in for a UsbDevice: a new instance every time the printer is plugged in. */
+    private static class FakeDevice {
+        final String name;
+
+        FakeDevice(String name) {
+            this.name = name;
+        }
+    }
+
+    private static Printer printer(String name) {
+        return new Printer(name, new LoopbackTransport(true));
+    }
+
+    @Test
+    public void removesOnlyThePrinterItWasGiven() {
+        PrinterRegistry<FakeDevice> registry = new PrinterRegistry<FakeDevice>();
+        Printer first = printer("1_1");
+        Printer second = printer("1_1");
+        assertNull(registry.putPrinter(first));
+        assertSame(first, registry.putPrinter(second));
+
+        // A permission denied for the replaced printer must not drop the new one.
+        registry.removePrinter("1_1", first);
+        assertSame(second, registry.getPrinter("1_1"));
+        assertSame(second, registry.addPrinter(printer("1_1")));
+    }
+
+    @Test
+    public void detachReturnsTheConnectedPrinter() {
+        PrinterRegistry<FakeDevice> registry = new PrinterRegistry<FakeDevice>();
+        registry.deviceAttached("1_1", new FakeDevice("1_1"));
+        Printer p = printer("1_1");
+        registry.addPrinter(p);
+
+        assertSame(p, registry.deviceDetached("1_1"));
+        assertNull(registry.getDevice("1_1"));
+        assertNull(registry.getPrinter("1_1"));
+        assertNull(registry.deviceDetached("1_1"));
+    }
+
+    /**
+     * Threads plug fake devices in and out, connect and disconnect them and look
+     * them up all at once, as the hotplug receiver, JS calls and warm start do.
+     * Every printer which got registered must be handed back exactly once, by a
+     * detach or a disconnect, or still be registered at the end.
+     */
+    @Test
+    public void handsOutEveryRegisteredPrinterOnceUnderConcurrentHotplug() throws Exception {
+        final PrinterRegistry<FakeDevice> registry = new PrinterRegistry<FakeDevice>();
+        final Set<Printer> registered = Collections.newSetFromMap(new ConcurrentHashMap<Printer, Boolean>());
+        final ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<Throwable>();
+        final CountDownLatch start = new CountDownLatch(1);
+        int threads = 8;
+        final int rounds = 2000;
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final long seed = t;
+            Thread worker = new Thread(new Runnable() {
+                public void run() {
+                    Random random = new Random(seed);
+                    try {
+                        start.await();
+                        for (int i = 0; i < rounds; i++) {
+                            String name = "1208_" + random.nextInt(6);
+                            switch (random.nextInt(6)) {
+                            case 0:
+                                registry.deviceAttached(name, new FakeDevice(name));
+                                break;
+                            case 1:
+                                release(registered, registry.deviceDetached(name));
+                                break;
+                            case 2:
+                                if (registry.getDevice(name) != null) {
+                                    Printer p = printer(name);
+                                    // Added before registering, a printer handed back right away is found.
+                                    registered.add(p);
+                                    if (registry.addPrinter(p) != p) {
+                                        registered.remove(p);
+                                        p.close();
+                                    }
+                                }
+                                break;
+                            case 3:
+                                release(registered, registry.removePrinter(name));
+                                break;
+                            case 4:
+                                for (FakeDevice device : registry.getDevices()) {
+                                    assertTrue(device.name.startsWith("1208_"));
+                                }
+                                break;
+                            default:
+                                Printer p = registry.getPrinter(name);
+                                if (p != null) {
+                                    assertEquals(name, p.getPrinterName());
+                                }
+                            }
+                        }
+                    } catch (Throwable exp) {
+                        errors.add(exp);
+                    }
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (!errors.isEmpty()) {
+            throw new AssertionError(errors.peek());
+        }
+        for (Printer p : new ArrayList<Printer>(registry.getPrinters())) {
+            release(registered, p);
+        }
+        assertTrue(registered.isEmpty());
+    }
+
+    private static void release(Set<Printer> registered, Printer p) {
+        if (p != null) {
+            assertTrue("Printer " + p.getPrinterName() + " handed out twice", registered.remove(p));
+            p.close();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.usbprint.cordova;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rasterizing a 384 dot wide image, thresholded or dithered, in bitmaps per
+ * second. The image is a gradient with noise, as a photo would be. A logo fits
+ * in one band of 128 rows. Taller images show how much of the parallel
+ * speedup is left when dithering, where the error diffusion runs band after
+ * band.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RasterBenchmark {
+
+    @Param({ "false", "true" })
+    public boolean dither;
+
+    @Param({ "128", "1000", "4000" })
+    public int height;
+
+    private int[] image;
+    private int[] pixels;
+
+    @Setup
+    public void setUp() {
+        int width = ImageRasterizer.DEFAULT_DOT_WIDTH;
+        Random random = new Random(42);
+        image = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int grey = Math.max(0, Math.min(255, (x + y) * 255 / (width + height) + random.nextInt(32) - 16));
+                image[y * width + x] = 0xff000000 | grey << 16 | grey << 8 | grey;
+            }
+        }
+        pixels = new int[image.length];
+    }
+
+    @Benchmark
+    public ByteBuffer rasterize() throws Exception {
+        // rasterize reuses the pixels as scratch space.
+        System.arraycopy(image, 0, pixels, 0, image.length);
+        return ImageRasterizer.rasterize(pixels, ImageRasterizer.DEFAULT_DOT_WIDTH, height, dither);
+    }
+}
@@ -0,0 +1,84 @@
+package com.usbprint.cordova;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The send path of a printer up to the transport, over a loopback which
+ * discards what it gets: segmenting, stats and, with spool set, journaling
+ * every transfer to a print spool.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SendPathBenchmark {
+
+    @Param({ "false", "true" })
+    public boolean spool;
+
+    private Printer printer;
+    private File file;
+
+    /** Bytes of one transfer. */
+    @State(Scope.Thread)
+    public static class Payload {
+
+        @Param({ "64", "65536" })
+        public int size;
+
+        ByteBuffer data;
+
+        @Setup
+        public void setUp() {
+            data = ByteBuffer.allocateDirect(size);
+            while (data.hasRemaining()) {
+                data.put((byte) ('A' + data.position() % 26));
+            }
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        printer = new Printer("bench", new LoopbackTransport(true));
+        if (spool) {
+            file = File.createTempFile("usbprint", ".spool");
+            printer.setSpool(new PrintSpool(file, 4 * 1024 * 1024));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        printer.close();
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    @Benchmark
+    public int sendBuffer(Payload payload) throws Exception {
+        payload.data.rewind();
+        return printer.sendBuffer(payload.data);
+    }
+
+    @Benchmark
+    public void sendMsg() throws Exception {
+        printer.sendMsg("2 x Espresso                    3.80", "GBK");
+    }
+}
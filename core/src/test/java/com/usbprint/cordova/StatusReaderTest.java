@@ -0,0 +1,75 @@
+package com.usbprint.cordova;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class StatusReaderTest {
+
+    /**
+     * Answers each DLE EOT query like a healthy printer, except that the first
+     * answer to DLE EOT 2 comes 50 ms after the reader stopped waiting for it.
+     */
+    private static class LateTransport extends LoopbackTransport {
+        private final ScheduledExecutorService printer = Executors.newSingleThreadScheduledExecutor();
+        private boolean late = true;
+
+        LateTransport() {
+            super(true);
+        }
+
+        @Override
+        public synchronized int write(ByteBuffer data) {
+            if (data.remaining() == 3 && data.get(data.position()) == 16) {
+                final int n = data.get(data.position() + 2);
+                if (n == 2 && late) {
+                    late = false;
+                    printer.schedule(new Runnable() {
+                        public void run() {
+                            // Read as offline with the drawer open if taken for the next round's DLE EOT 1.
+                            respond(new byte[] { 0x1e });
+                        }
+                    }, 250, TimeUnit.MILLISECONDS);
+                } else {
+                    respond(new byte[] { 0x12 });
+                }
+            }
+            return super.write(data);
+        }
+    }
+
+    @Test
+    public void lateReplyIsNotTakenForTheNextOne() throws Exception {
+        final List<PrinterStatus> published = new CopyOnWriteArrayList<PrinterStatus>();
+        LateTransport transport = new LateTransport();
+        Printer printer = new Printer("status", transport) {
+            @Override
+            void publishStatus(PrinterStatus next) {
+                published.add(next);
+            }
+        };
+        StatusReader reader = new StatusReader(printer, transport, false, 200);
+        reader.start();
+        Thread.sleep(1500);
+        reader.stop();
+        printer.close();
+
+        assertFalse(published.isEmpty());
+        for (PrinterStatus status : published) {
+            assertTrue(status.isOnline());
+            assertFalse(status.isDrawerOpen());
+            assertFalse(status.isCoverOpen());
+            assertFalse(status.isError());
+            assertFalse(status.isPaperOut());
+            assertFalse(status.isPaperNearEnd());
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.usbprint.cordova;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class StreamSessionTest {
+
+    /** Writes the first chunk, fails the second like a USB timeout and counts every write after. */
+    private static class FailingTransport implements PrinterTransport {
+        volatile int writes = 0;
+        volatile int bytes = 0;
+
+        public int write(ByteBuffer data) throws IOException {
+            writes++;
+            if (writes == 2) {
+                throw new IOException("Timed out");
+            }
+            int length = data.remaining();
+            data.position(data.limit());
+            bytes += length;
+            return length;
+        }
+
+        public int read(byte[] buffer, int length, int timeoutMs) {
+            return -1;
+        }
+
+        public boolean canRead() {
+            return false;
+        }
+
+        public void close() {
+        }
+    }
+
+    private static class Recorder implements PluginCallback {
+        final CountDownLatch errored = new CountDownLatch(1);
+        volatile String error = null;
+        volatile Object result = null;
+
+        public void success(Object message, boolean keep) {
+            if (!keep) {
+                result = message;
+                errored.countDown();
+            }
+        }
+
+        public void error(String message) {
+            error = message;
+            errored.countDown();
+        }
+    }
+
+    @Test
+    public void failedChunkSkipsTheRestAndFailsTheClose() throws Exception {
+        FailingTransport transport = new FailingTransport();
+        Printer printer = new Printer("stream", transport);
+        Recorder session = new Recorder();
+        StreamSession stream = new StreamSession(printer, session);
+        stream.opened();
+        stream.write(new byte[] { 1, 2, 3 });
+        stream.write(new byte[] { 4, 5, 6 });
+        stream.write(new byte[] { 7, 8, 9 });
+        Recorder closed = new Recorder();
+        stream.close(closed);
+
+        assertTrue(closed.errored.await(5, TimeUnit.SECONDS));
+        assertEquals("Timed out", closed.error);
+        assertEquals("Timed out", session.error);
+        // The third chunk must not be printed after the gap left by the second.
+        assertEquals(2, transport.writes);
+        assertEquals(3, transport.bytes);
+        printer.close();
+    }
+
+    @Test
+    public void jobsSubmittedDuringTheStreamPrintAfterIt() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport(false);
+        Printer printer = new Printer("stream", transport);
+        StreamSession stream = new StreamSession(printer, null);
+        stream.opened();
+        stream.write(new byte[] { 29, 118, 48 });
+        Recorder other = new Recorder();
+        printer.submit(new PrintJob(other) {
+            protected Object execute(Printer p) throws Exception {
+                p.sendByte(new byte[] { 9 });
+                return "Printed";
+            }
+        });
+        // The rest of the command the first chunk started.
+        Thread.sleep(100);
+        stream.write(new byte[] { 0, 1, 0 });
+        Recorder closed = new Recorder();
+        stream.close(closed);
+
+        assertTrue(other.errored.await(5, TimeUnit.SECONDS));
+        assertTrue(closed.errored.await(5, TimeUnit.SECONDS));
+        assertArrayEquals(new byte[] { 29, 118, 48, 0, 1, 0, 9 }, transport.toByteArray());
+        printer.close();
+    }
+}
@@ -0,0 +1,64 @@
+package com.usbprint.cordova;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Text encoding: one line, and a 40 line batch as sendBatch builds it. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class TextEncoderBenchmark {
+
+    @Param({ "latin", "cjk", "mixed" })
+    public String text;
+
+    private TextEncoder encoder;
+    private String line;
+    private String[] batch;
+
+    @Setup
+    public void setUp() {
+        encoder = new TextEncoder("GBK");
+        if (text.equals("latin")) {
+            line = "2 x Espresso                    3.80";
+        } else if (text.equals("cjk")) {
+            line = "两杯拿铁和一份牛角面包";
+        } else {
+            // Falls back to the other code pages for the accented and Cyrillic characters.
+            line = "Café crème 中文 Борщ 12.50";
+        }
+        batch = new String[40];
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = line;
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer encodeLine() {
+        return encoder.encodeLine(line);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeBatch() {
+        TextEncoder enc = encoder.begin();
+        for (String msg : batch) {
+            enc.append(msg).restoreCodePage().append((byte) 13).append((byte) 10);
+        }
+        return enc.finish();
+    }
+}
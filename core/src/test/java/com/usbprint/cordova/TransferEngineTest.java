@@ -0,0 +1,88 @@
+package com.usbprint.cordova;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class TransferEngineTest {
+
+    private static byte[] payload(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + i / 251);
+        }
+        return data;
+    }
+
+    @Test
+    public void writesPacketSizedChunksWithSeveralInFlight() throws Exception {
+        FakeEndpoint endpoint = new FakeEndpoint(64, 16384, 4);
+        byte[] data = payload(100000);
+        TransferEngine engine = new TransferEngine(endpoint);
+
+        assertEquals(data.length, engine.write(data));
+        assertArrayEquals(data, endpoint.received());
+        for (int size : endpoint.chunkSizes) {
+            assertTrue(size <= 64 * 64);
+        }
+        assertEquals(4, endpoint.maxOutstanding);
+    }
+
+    @Test
+    public void capsChunksAtTheLargestTransferOfTheChannel() throws Exception {
+        // 512 byte packets make 32 KB chunks, above what a request takes before Android 9.
+        FakeEndpoint endpoint = new FakeEndpoint(512, 16384, 2);
+        byte[] data = payload(100000);
+        TransferEngine engine = new TransferEngine(endpoint);
+
+        assertEquals(16384, engine.getChunkSize());
+        assertEquals(data.length, engine.write(data));
+        assertArrayEquals(data, endpoint.received());
+    }
+
+    @Test
+    public void resendsFromTheFirstByteAShortWriteMissed() throws Exception {
+        FakeEndpoint endpoint = new FakeEndpoint(64, 16384, 4).accept(-1, 1000, -1, 0, -1);
+        byte[] data = payload(50000);
+        PrinterStats stats = new PrinterStats();
+        TransferEngine engine = new TransferEngine(endpoint, stats);
+
+        assertEquals(data.length, engine.write(ByteBuffer.wrap(data)));
+        assertArrayEquals(data, endpoint.received());
+        assertEquals(2, stats.toJSON(0).getLong("shortWrites"));
+    }
+
+    @Test
+    public void failsWithTheBytesWrittenWhenThePrinterStalls() throws Exception {
+        FakeEndpoint endpoint = new FakeEndpoint(64, 16384, 4).stallAfter(2);
+        PrinterStats stats = new PrinterStats();
+        TransferEngine engine = new TransferEngine(endpoint, stats);
+
+        try {
+            engine.write(payload(50000));
+            fail("Stalled write did not fail");
+        } catch (TransferException exp) {
+            assertEquals(2 * 4096, exp.getBytesWritten());
+        }
+        assertEquals(1, endpoint.cancels);
+        assertEquals(1, stats.toJSON(0).getLong("timeouts"));
+    }
+
+    @Test
+    public void givesUpWhenThePrinterKeepsRefusingData() throws Exception {
+        FakeEndpoint endpoint = new FakeEndpoint(64, 16384, 1).accept(-1, 0, 0, 0, 0, 0);
+        TransferEngine engine = new TransferEngine(endpoint);
+
+        try {
+            engine.write(payload(10000));
+            fail("Refused write did not fail");
+        } catch (TransferException exp) {
+            assertEquals(4096, exp.getBytesWritten());
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.usbprint.cordova;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TransmitPipelineTest {
+
+    private static class Recorder implements PluginCallback {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile Object result = null;
+
+        public void success(Object message, boolean keep) {
+            if (!keep) {
+                result = message;
+                done.countDown();
+            }
+        }
+
+        public void error(String message) {
+            done.countDown();
+        }
+    }
+
+    private static byte[] filled(int length, int value) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) value);
+        return bytes;
+    }
+
+    /** A transfer bigger than a buffer is written in its place between the small ones around it. */
+    @Test
+    public void bigTransferKeepsItsPlace() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport(false);
+        Printer printer = new Printer("pipeline", transport);
+        final byte[] small = filled(1000, 1);
+        final byte[] big = filled(100 * 1024, 2);
+        Recorder[] jobs = new Recorder[3];
+        for (int i = 0; i < jobs.length; i++) {
+            jobs[i] = new Recorder();
+            printer.submit(new PrintJob(jobs[i], true) {
+                protected Object execute(Printer p) throws Exception {
+                    p.sendByte(small);
+                    p.sendBuffer(ByteBuffer.wrap(big));
+                    p.sendByte(small);
+                    return "Printed";
+                }
+            });
+        }
+        for (Recorder job : jobs) {
+            assertTrue(job.done.await(5, TimeUnit.SECONDS));
+            assertEquals("Printed", job.result);
+        }
+
+        byte[] out = transport.toByteArray();
+        assertEquals(3 * (2 * small.length + big.length), out.length);
+        for (int pos = 0; pos < out.length; pos += 2 * small.length + big.length) {
+            assertArrayEquals(small, Arrays.copyOfRange(out, pos, pos + small.length));
+            assertArrayEquals(big, Arrays.copyOfRange(out, pos + small.length, pos + small.length + big.length));
+            assertArrayEquals(small, Arrays.copyOfRange(out, pos + small.length + big.length,
+                    pos + 2 * small.length + big.length));
+        }
+        printer.close();
+    }
+}
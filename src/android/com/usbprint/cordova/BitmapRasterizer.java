@@ -0,0 +1,61 @@
+package com.usbprint.cordova;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes PNG/JPEG bytes into a bitmap scaled down to the printer's dot width
+ * and hands its pixels to {@link ImageRasterizer}.
+ */
+public class BitmapRasterizer {
+
+    private BitmapRasterizer() {
+    }
+
+    /**
+     * Decodes the image and returns the GS v 0 commands needed to print it,
+     * ready to be handed to {@link Printer#sendBuffer(ByteBuffer)}.
+     */
+    public static ByteBuffer rasterize(byte[] image, int dotWidth, boolean dither) throws IOException {
+        Bitmap bitmap = decode(image, dotWidth);
+        try {
+            int width = bitmap.getWidth();
+            int height = bitmap.getHeight();
+            int[] pixels = new int[width * height];
+            bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+            return ImageRasterizer.rasterize(pixels, width, height, dither);
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    private static Bitmap decode(byte[] image, int dotWidth) throws IOException {
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(image, 0, image.length, opts);
+        if (opts.outWidth <= 0 || opts.outHeight <= 0) {
+            throw new IOException("Unsupported image format");
+        }
+        int sample = 1;
+        while (opts.outWidth / (sample * 2) >= dotWidth) {
+            sample *= 2;
+        }
+        opts = new BitmapFactory.Options();
+        opts.inSampleSize = sample;
+        opts.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        Bitmap bitmap = BitmapFactory.decodeByteArray(image, 0, image.length, opts);
+        if (bitmap == null) {
+            throw new IOException("Unable to decode image");
+        }
+        if (bitmap.getWidth() > dotWidth) {
+            int height = Math.max(1, bitmap.getHeight() * dotWidth / bitmap.getWidth());
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap, dotWidth, height, true);
+            bitmap.recycle();
+            bitmap = scaled;
+        }
+        return bitmap;
+    }
+}
@@ -0,0 +1,37 @@
+package com.usbprint.cordova;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Asynchronous bulk OUT pipe used by {@link TransferEngine}. Kept separate from
+ * the Android USB classes so the engine can be driven by a fake endpoint.
+ */
+public interface BulkChannel {
+
+    int getMaxPacketSize();
+
+    /** Largest write the channel accepts at once. */
+    int getMaxTransferSize();
+
+    /** Number of writes which may be outstanding at the same time. */
+    int getMaxInFlight();
+
+    /**
+     * Starts writing the remaining bytes of the buffer. Once the write completes
+     * the position of the buffer is set to the number of bytes written.
+     */
+    void submit(ByteBuffer buffer) throws IOException;
+
+    /**
+     * Waits for a submitted write to complete and returns its buffer, or null
+     * when nothing completed within the timeout.
+     */
+    ByteBuffer awaitCompletion(long timeoutMs) throws IOException;
+
+    /** Aborts all outstanding writes. */
+    void cancelAll();
+
+    /** Aborts the outstanding writes and frees the channel's resources. */
+    void close();
+}
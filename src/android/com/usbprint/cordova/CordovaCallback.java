@@ -0,0 +1,33 @@
+package com.usbprint.cordova;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/** {@link PluginCallback} answering through a Cordova CallbackContext. */
+public class CordovaCallback implements PluginCallback {
+
+    private final CallbackContext callbackContext;
+
+    public CordovaCallback(CallbackContext callbackContext) {
+        this.callbackContext = callbackContext;
+    }
+
+    public void success(Object message, boolean keep) {
+        PluginResult res;
+        if (message instanceof JSONArray) {
+            res = new PluginResult(PluginResult.Status.OK, (JSONArray) message);
+        } else if (message instanceof JSONObject) {
+            res = new PluginResult(PluginResult.Status.OK, (JSONObject) message);
+        } else {
+            res = new PluginResult(PluginResult.Status.OK, String.valueOf(message));
+        }
+        res.setKeepCallback(keep);
+        callbackContext.sendPluginResult(res);
+    }
+
+    public void error(String message) {
+        callbackContext.error(message);
+    }
+}
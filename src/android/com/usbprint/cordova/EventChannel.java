@@ -0,0 +1,143 @@
+package com.usbprint.cordova;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Single keep-alive callback receiving the plugin's events in batches: job
+ * progress ("job"), printer status changes ("status") and printers plugged in
+ * or out ("attach", "detach"). Events are collected for the batch interval and
+ * coalesced, so a batch holds only the latest state of each job, of each
+ * printer's status and of each printer's attachment, in the order they last
+ * changed. Nothing is collected while no one is subscribed.
+ */
+public class EventChannel {
+
+    private static final String TAG = "USBPrint";
+    public static final long DEFAULT_INTERVAL_MS = 250;
+    private static final long MIN_INTERVAL_MS = 16;
+    private static final ScheduledExecutorService scheduler = Executors
+            .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "USBPrint-events");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private final Map<String, JSONObject> pending = new LinkedHashMap<String, JSONObject>();
+    private PluginCallback subscriber = null;
+    private Set<String> types = null;
+    private long intervalMs = DEFAULT_INTERVAL_MS;
+    private ScheduledFuture<?> flush = null;
+
+    private final Runnable flushTask = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Sends the events of the given types (all when types is null or empty) to the
+     * callback every intervalMs milliseconds, replacing any earlier subscriber.
+     */
+    public synchronized void subscribe(PluginCallback callback, Set<String> types, long intervalMs) {
+        this.subscriber = callback;
+        this.types = types != null && !types.isEmpty() ? types : null;
+        this.intervalMs = intervalMs > 0 ? Math.max(MIN_INTERVAL_MS, intervalMs) : DEFAULT_INTERVAL_MS;
+        this.pending.clear();
+        callback.success("Subscribed", true);
+    }
+
+    public synchronized void unsubscribe() {
+        this.subscriber = null;
+        this.pending.clear();
+        if (this.flush != null) {
+            this.flush.cancel(false);
+            this.flush = null;
+        }
+    }
+
+    public void jobEvent(String printer_name, int jobId, String state, String error) {
+        if (!wants("job")) {
+            return;
+        }
+        try {
+            JSONObject event = new JSONObject().put("printername", printer_name).put("jobId", jobId)
+                    .put("state", state);
+            if (error != null) {
+                event.put("error", error);
+            }
+            post("job", "job:" + jobId, event);
+        } catch (JSONException err) {
+            PrintLog.e(TAG, "Exception in parsing to JSON object");
+        }
+    }
+
+    public void statusEvent(String printer_name, PrinterStatus status) {
+        if (!wants("status")) {
+            return;
+        }
+        try {
+            post("status", "status:" + printer_name, status.toJSON().put("printername", printer_name));
+        } catch (JSONException err) {
+            PrintLog.e(TAG, "Exception in parsing to JSON object");
+        }
+    }
+
+    /** type is "attach" or "detach"; a later one replaces the earlier within a batch. */
+    public void deviceEvent(String type, String printer_name) {
+        if (!wants(type)) {
+            return;
+        }
+        try {
+            post(type, "device:" + printer_name, new JSONObject().put("printername", printer_name));
+        } catch (JSONException err) {
+            PrintLog.e(TAG, "Exception in parsing to JSON object");
+        }
+    }
+
+    private synchronized boolean wants(String type) {
+        return this.subscriber != null && (this.types == null || this.types.contains(type));
+    }
+
+    private synchronized void post(String type, String key, JSONObject event) throws JSONException {
+        if (this.subscriber == null) {
+            return;
+        }
+        event.put("type", type).put("time", System.currentTimeMillis());
+        // Re-inserting moves the key to the end, so the batch stays in order of the last change.
+        this.pending.remove(key);
+        this.pending.put(key, event);
+        if (this.flush == null) {
+            this.flush = scheduler.schedule(this.flushTask, this.intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flush() {
+        PluginCallback target;
+        JSONArray batch = new JSONArray();
+        synchronized (this) {
+            this.flush = null;
+            target = this.subscriber;
+            if (target == null || this.pending.isEmpty()) {
+                return;
+            }
+            for (JSONObject event : this.pending.values()) {
+                batch.put(event);
+            }
+            this.pending.clear();
+        }
+        target.success(batch, true);
+    }
+}
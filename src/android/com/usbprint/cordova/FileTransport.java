@@ -0,0 +1,48 @@
+package com.usbprint.cordova;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link PrinterTransport} writing everything to a file or named pipe, e.g. to
+ * capture the exact bytes a receipt produces.
+ */
+public class FileTransport implements PrinterTransport {
+
+    private static final String TAG = "USBPrint";
+
+    private final FileOutputStream out;
+    private final FileChannel channel;
+
+    public FileTransport(File file, boolean append) throws IOException {
+        this.out = new FileOutputStream(file, append);
+        this.channel = out.getChannel();
+    }
+
+    public int write(ByteBuffer data) throws IOException {
+        int written = 0;
+        while (data.hasRemaining()) {
+            written += channel.write(data);
+        }
+        return written;
+    }
+
+    public int read(byte[] buffer, int length, int timeoutMs) {
+        return -1;
+    }
+
+    public boolean canRead() {
+        return false;
+    }
+
+    public void close() {
+        try {
+            out.close();
+        } catch (IOException exp) {
+            PrintLog.e(TAG, "Issue while closing file transport", exp);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.usbprint.cordova;
+
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Adapts the chunk size, the number of chunks in flight and the pacing of a
+ * {@link TransferEngine} to how fast the printer drains its receive buffer.
+ *
+ * The drain rate is estimated from the time between chunk completions. A short
+ * write, a completion much slower than the estimate or an offline status reply
+ * means the buffer is full: the chunk size is halved, only one chunk is kept in
+ * flight and chunks are paced at half the drain rate, halved again on every
+ * further sign of a full buffer. Every run of good
+ * completions grows the chunk by one packet and the pace by 10% until
+ * the full size is reached again (additive increase, multiplicative decrease).
+ *
+ * What was learned is kept per vendor/product id, so the next printer of the
+ * same model starts with the right settings.
+ */
+public class FlowControl {
+
+    private static final int PACKETS_PER_CHUNK = 64;
+    private static final int GOOD_RUN = 4;
+    private static final long MIN_SLOW_NANOS = 100000000L;
+    private static final long MAX_PACE_NANOS = 1000000000L;
+    private static final int MIN_PACKETS_PER_SECOND = 16;
+    private static final Map<String, String> profiles = new ConcurrentHashMap<String, String>();
+
+    private final String model;
+    private final int packetSize;
+    private final int maxChunk;
+    private final int maxWindow;
+    private int chunkSize;
+    private int window;
+    private boolean throttled = false;
+    private double drainRate = 0;
+    private double paceRate = 0;
+    private int goodCompletions = 0;
+    private long lastEventNanos = 0;
+    private long nextSubmitNanos = 0;
+    private long congestions = 0;
+
+    public FlowControl(String model, int packetSize, int maxWindow) {
+        this.model = model;
+        this.packetSize = Math.max(packetSize, 1);
+        this.maxChunk = this.packetSize * PACKETS_PER_CHUNK;
+        this.maxWindow = Math.max(maxWindow, 1);
+        this.chunkSize = this.maxChunk;
+        this.window = this.maxWindow;
+        restore(model != null ? profiles.get(model) : null);
+    }
+
+    public static String modelOf(int vendorId, int productId) {
+        return vendorId + ":" + productId;
+    }
+
+    /** Learned settings of every model seen, as stored by {@link #loadProfiles(Map)}. */
+    public static Map<String, String> getProfiles() {
+        return profiles;
+    }
+
+    public static void loadProfiles(Map<String, String> stored) {
+        profiles.putAll(stored);
+    }
+
+    public synchronized int getChunkSize() {
+        return chunkSize;
+    }
+
+    public synchronized int getWindow() {
+        return window;
+    }
+
+    /** Starts timing a new write. */
+    public synchronized void begin() {
+        lastEventNanos = System.nanoTime();
+    }
+
+    /** Waits until the next chunk of the given size may be submitted. */
+    public void pace(int bytes) throws InterruptedIOException {
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (!throttled || paceRate <= 0) {
+                nextSubmitNanos = now;
+                return;
+            }
+            long start = Math.max(now, nextSubmitNanos);
+            nextSubmitNanos = start + Math.min((long) (bytes * 1e9 / paceRate), MAX_PACE_NANOS);
+            waitNanos = start - now;
+        }
+        if (waitNanos > 0) {
+            try {
+                Thread.sleep(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+            } catch (InterruptedException exp) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while pacing printer data");
+            }
+        }
+    }
+
+    /** Records a chunk which was fully written. */
+    public synchronized void completed(int bytes) {
+        long now = System.nanoTime();
+        long elapsed = Math.max(now - lastEventNanos, 1);
+        lastEventNanos = now;
+        double sample = bytes * 1e9 / elapsed;
+        if (drainRate > 0 && elapsed > MIN_SLOW_NANOS && sample < drainRate / 4) {
+            drainRate = drainRate * 0.5 + sample * 0.5;
+            congested();
+            return;
+        }
+        drainRate = drainRate > 0 ? drainRate * 0.8 + sample * 0.2 : sample;
+        if (++goodCompletions < GOOD_RUN || !throttled) {
+            return;
+        }
+        goodCompletions = 0;
+        chunkSize = Math.min(chunkSize + packetSize, maxChunk);
+        paceRate *= 1.1;
+        if (chunkSize == maxChunk) {
+            window = Math.min(window + 1, maxWindow);
+            throttled = window < maxWindow;
+        }
+    }
+
+    /** Records a short write or any other sign that the printer's buffer is full. */
+    public synchronized void congested() {
+        congestions++;
+        goodCompletions = 0;
+        throttled = true;
+        window = 1;
+        chunkSize = Math.max(packetSize, (chunkSize / 2) / packetSize * packetSize);
+        double rate = paceRate > 0 ? Math.min(paceRate, drainRate) : drainRate;
+        if (rate > 0) {
+            paceRate = Math.max(rate / 2, packetSize * MIN_PACKETS_PER_SECOND);
+        }
+    }
+
+    /** Stores the settings reached at the end of a write for the printer's model. */
+    public synchronized void finish() {
+        if (model != null && (throttled || profiles.containsKey(model))) {
+            profiles.put(model, chunkSize + "," + window + "," + (long) paceRate + "," + throttled);
+        }
+    }
+
+    private void restore(String profile) {
+        if (profile == null) {
+            return;
+        }
+        String[] parts = profile.split(",");
+        if (parts.length != 4) {
+            return;
+        }
+        try {
+            chunkSize = Math.max(packetSize, Math.min(Integer.parseInt(parts[0]), maxChunk));
+            window = Math.max(1, Math.min(Integer.parseInt(parts[1]), maxWindow));
+            paceRate = Long.parseLong(parts[2]);
+            drainRate = paceRate;
+            throttled = Boolean.parseBoolean(parts[3]);
+        } catch (NumberFormatException exp) {
+            chunkSize = maxChunk;
+            window = maxWindow;
+        }
+    }
+
+    public synchronized JSONObject toJSON() throws JSONException {
+        return new JSONObject().put("chunkSize", chunkSize).put("inFlight", window).put("throttled", throttled)
+                .put("drainRate", (long) drainRate).put("paceRate", (long) paceRate).put("congestions", congestions);
+    }
+}
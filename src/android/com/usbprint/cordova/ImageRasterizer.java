@@ -0,0 +1,201 @@
+package com.usbprint.cordova;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Turns ARGB pixels, scaled to the printer's dot width by
+ * {@link BitmapRasterizer}, into 1bpp ESC/POS raster data. They are converted
+ * to luminance band by band on all cores. The image is
+ * then thresholded on all cores too, or Floyd-Steinberg dithered from top to
+ * bottom so the error flows across band edges, each band being packed on
+ * another core as soon as it is dithered. Each band is emitted as its own GS v 0
+ * command so the printer never has to buffer a whole logo.
+ */
+public class ImageRasterizer {
+
+    public static final int DEFAULT_DOT_WIDTH = 384;
+    private static final int BAND_HEIGHT = 128;
+    private static final int THRESHOLD = 128;
+    private static final int HEADER_SIZE = 8;
+    private static final ExecutorService bandPool = Executors.newFixedThreadPool(
+            Math.max(Runtime.getRuntime().availableProcessors(), 1), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "USBPrint-raster");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private ImageRasterizer() {
+    }
+
+    /**
+     * Rasterizes ARGB pixels which are already scaled to the printer's dot width.
+     * The pixel array is reused as scratch space for the luminance values.
+     */
+    public static ByteBuffer rasterize(final int[] pixels, final int width, final int height, final boolean dither)
+            throws IOException {
+        final int widthBytes = (width + 7) / 8;
+        int bands = (height + BAND_HEIGHT - 1) / BAND_HEIGHT;
+        final ByteBuffer out = ByteBuffer.allocateDirect(bands * HEADER_SIZE + widthBytes * height);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(bands);
+        for (int band = 0; band < bands; band++) {
+            final int top = band * BAND_HEIGHT;
+            final int rows = Math.min(BAND_HEIGHT, height - top);
+            final int offset = band * (HEADER_SIZE + widthBytes * BAND_HEIGHT);
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    toLuminance(pixels, width, top, rows);
+                    if (!dither) {
+                        writeBand(out, offset, pixels, width, widthBytes, top, rows);
+                    }
+                    return null;
+                }
+            });
+        }
+        try {
+            for (Future<Void> done : bandPool.invokeAll(tasks)) {
+                done.get();
+            }
+            if (dither) {
+                List<Future<?>> written = new ArrayList<Future<?>>(bands);
+                for (int band = 0; band < bands; band++) {
+                    final int top = band * BAND_HEIGHT;
+                    final int rows = Math.min(BAND_HEIGHT, height - top);
+                    final int offset = band * (HEADER_SIZE + widthBytes * BAND_HEIGHT);
+                    ditherBand(pixels, width, height, top, rows);
+                    written.add(bandPool.submit(new Runnable() {
+                        public void run() {
+                            writeBand(out, offset, pixels, width, widthBytes, top, rows);
+                        }
+                    }));
+                }
+                for (Future<?> done : written) {
+                    done.get();
+                }
+            }
+        } catch (InterruptedException exp) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while rasterizing image");
+        } catch (ExecutionException exp) {
+            throw new IOException("Unable to rasterize image", exp.getCause());
+        }
+        out.clear();
+        return out;
+    }
+
+    /**
+     * Returns the bare rows of 1-bit pixels of the GS v 0 commands made by
+     * {@link #rasterize(int[], int, int, boolean)}, as needed to define NV
+     * graphics. The width in dots, padded to a multiple of 8, and the height are
+     * stored in size.
+     */
+    public static byte[] bitsOf(ByteBuffer raster, int[] size) {
+        int widthBytes = (raster.get(4) & 0xff) | (raster.get(5) & 0xff) << 8;
+        int bands = 0;
+        int height = 0;
+        for (int pos = 0; pos < raster.limit(); bands++) {
+            int rows = (raster.get(pos + 6) & 0xff) | (raster.get(pos + 7) & 0xff) << 8;
+            height += rows;
+            pos += HEADER_SIZE + widthBytes * rows;
+        }
+        byte[] bits = new byte[widthBytes * height];
+        int offset = 0;
+        for (int band = 0, pos = 0; band < bands; band++) {
+            int rows = (raster.get(pos + 6) & 0xff) | (raster.get(pos + 7) & 0xff) << 8;
+            raster.position(pos + HEADER_SIZE);
+            raster.get(bits, offset, widthBytes * rows);
+            offset += widthBytes * rows;
+            pos += HEADER_SIZE + widthBytes * rows;
+        }
+        size[0] = widthBytes * 8;
+        size[1] = height;
+        return bits;
+    }
+
+    /** Returns the end of the GS v 0 band starting at pos in the raster. */
+    public static int bandEnd(ByteBuffer raster, int pos) {
+        int widthBytes = (raster.get(pos + 4) & 0xff) | (raster.get(pos + 5) & 0xff) << 8;
+        int rows = (raster.get(pos + 6) & 0xff) | (raster.get(pos + 7) & 0xff) << 8;
+        return pos + HEADER_SIZE + widthBytes * rows;
+    }
+
+    /** Replaces each ARGB pixel of the rows with its luminance composited on white paper. */
+    private static void toLuminance(int[] pixels, int width, int top, int rows) {
+        int end = (top + rows) * width;
+        for (int i = top * width; i < end; i++) {
+            int argb = pixels[i];
+            int alpha = argb >>> 24;
+            int lum = (((argb >> 16) & 0xff) * 299 + ((argb >> 8) & 0xff) * 587 + (argb & 0xff) * 114) / 1000;
+            pixels[i] = 255 - (255 - lum) * alpha / 255;
+        }
+    }
+
+    /**
+     * Floyd-Steinberg error diffusion over the rows of the band, leaving 0 or 255
+     * per pixel. The error of its last row goes into the first row of the next
+     * band, so bands have to be dithered in order.
+     */
+    private static void ditherBand(int[] lum, int width, int height, int top, int rows) {
+        int end = top + rows;
+        for (int y = top; y < end; y++) {
+            int row = y * width;
+            boolean hasNext = y + 1 < height;
+            for (int x = 0; x < width; x++) {
+                int i = row + x;
+                int old = lum[i];
+                int value = old < THRESHOLD ? 0 : 255;
+                int err = old - value;
+                lum[i] = value;
+                if (x + 1 < width) {
+                    lum[i + 1] += err * 7 / 16;
+                }
+                if (hasNext) {
+                    if (x > 0) {
+                        lum[i + width - 1] += err * 3 / 16;
+                    }
+                    lum[i + width] += err * 5 / 16;
+                    if (x + 1 < width) {
+                        lum[i + width + 1] += err / 16;
+                    }
+                }
+            }
+        }
+    }
+
+    private static void writeBand(ByteBuffer out, int offset, int[] lum, int width, int widthBytes, int top,
+            int rows) {
+        int pos = offset;
+        out.put(pos++, (byte) 29);
+        out.put(pos++, (byte) 118);
+        out.put(pos++, (byte) 48);
+        out.put(pos++, (byte) 0);
+        out.put(pos++, (byte) (widthBytes & 0xff));
+        out.put(pos++, (byte) ((widthBytes >> 8) & 0xff));
+        out.put(pos++, (byte) (rows & 0xff));
+        out.put(pos++, (byte) ((rows >> 8) & 0xff));
+        for (int y = top; y < top + rows; y++) {
+            int row = y * width;
+            for (int xb = 0; xb < widthBytes; xb++) {
+                int bits = 0;
+                int x = xb * 8;
+                for (int bit = 0; bit < 8; bit++, x++) {
+                    bits <<= 1;
+                    if (x < width && lum[row + x] < THRESHOLD) {
+                        bits |= 1;
+                    }
+                }
+                out.put(pos++, (byte) bits);
+            }
+        }
+    }
+}
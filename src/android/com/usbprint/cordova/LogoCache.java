@@ -0,0 +1,160 @@
+package com.usbprint.cordova;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps track of the logos stored in each printer's NV graphics memory. A logo
+ * is defined once with GS 8 L (function 67) under a two byte key code and then
+ * printed with the 11 bytes of GS ( L (function 69) instead of its raster data.
+ *
+ * The content hash and key code of every logo are remembered per printer
+ * identity (vendor/product/serial), and kept across sessions by the plugin
+ * (see {@link #getEntries()}), so a logo is uploaded again only when its image
+ * changed or when a different printer is plugged in.
+ */
+public class LogoCache {
+
+    private static final int FIRST_KEY_CODE = 32;
+    private static final int KEY_CODES = 95;
+    private final Map<String, String> store = new HashMap<String, String>();
+
+    /** Starts from the entries saved from {@link #getEntries()} in an earlier session. */
+    public LogoCache(Map<String, ?> entries) {
+        for (Map.Entry<String, ?> entry : entries.entrySet()) {
+            if (entry.getValue() instanceof String) {
+                store.put(entry.getKey(), (String) entry.getValue());
+            }
+        }
+    }
+
+    /** Copy of the entries, to be saved after an upload. */
+    public synchronized Map<String, String> getEntries() {
+        return new HashMap<String, String>(store);
+    }
+
+    /** Hash identifying the logo as it would be stored on the printer. */
+    public static String hashOf(byte[] image, int dotWidth, boolean dither) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(image);
+            digest.update(ByteBuffer.allocate(5).putInt(dotWidth).put((byte) (dither ? 1 : 0)).array());
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException exp) {
+            throw new IllegalStateException(exp);
+        }
+    }
+
+    /** Whether the printer already holds this version of the logo. */
+    public synchronized boolean isStored(String identity, String key, String hash) {
+        String entry = store.get(entryKey(identity, key));
+        return entry != null && entry.startsWith(hash + ",");
+    }
+
+    /**
+     * Uploads the logo, rasterized by {@link ImageRasterizer}, to the printer's NV
+     * memory, reusing the key code it had before, and remembers its hash.
+     */
+    public void upload(Printer printer, String key, String hash, ByteBuffer raster) throws IOException {
+        String identity = printer.getIdentity();
+        int slot;
+        synchronized (this) {
+            slot = slotOf(identity, key);
+            if (slot < 0) {
+                slot = freeSlot(identity);
+            }
+        }
+        int[] size = new int[2];
+        byte[] bits = ImageRasterizer.bitsOf(raster, size);
+        printer.sendBuffer(defineCommand(slot, size[0], size[1], bits));
+        synchronized (this) {
+            store.put(entryKey(identity, key), hash + "," + slot);
+        }
+    }
+
+    /** GS ( L function 69 printing the logo, or null if it was never uploaded to this printer. */
+    public synchronized byte[] printCommand(String identity, String key) {
+        int slot = slotOf(identity, key);
+        if (slot < 0) {
+            return null;
+        }
+        return new byte[] { 29, 40, 76, 6, 0, 48, 69, keyCode1(slot), keyCode2(slot), 1, 1 };
+    }
+
+    /** Forgets the logos of the printer, e.g. after its NV memory was erased. */
+    public synchronized void clear(String identity) {
+        Iterator<String> it = store.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().startsWith(identity + "|")) {
+                it.remove();
+            }
+        }
+    }
+
+    static ByteBuffer defineCommand(int slot, int widthDots, int heightDots, byte[] bits) {
+        int params = 11 + bits.length;
+        ByteBuffer cmd = ByteBuffer.allocate(7 + params);
+        cmd.put(new byte[] { 29, 56, 76 });
+        cmd.put((byte) params).put((byte) (params >> 8)).put((byte) (params >> 16)).put((byte) (params >> 24));
+        cmd.put(new byte[] { 48, 67, 48, keyCode1(slot), keyCode2(slot), 1 });
+        cmd.put((byte) widthDots).put((byte) (widthDots >> 8)).put((byte) heightDots).put((byte) (heightDots >> 8));
+        cmd.put((byte) 49).put(bits);
+        cmd.flip();
+        return cmd;
+    }
+
+    private int slotOf(String identity, String key) {
+        String entry = store.get(entryKey(identity, key));
+        if (entry == null) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(entry.substring(entry.lastIndexOf(',') + 1));
+        } catch (NumberFormatException exp) {
+            return -1;
+        }
+    }
+
+    private int freeSlot(String identity) throws IOException {
+        Set<Integer> used = new HashSet<Integer>();
+        for (Map.Entry<String, String> entry : store.entrySet()) {
+            if (entry.getKey().startsWith(identity + "|")) {
+                String value = entry.getValue();
+                try {
+                    used.add(Integer.parseInt(value.substring(value.lastIndexOf(',') + 1)));
+                } catch (NumberFormatException exp) {
+                    // Not a slot entry, its key code cannot be in use.
+                }
+            }
+        }
+        for (int slot = 0; slot < KEY_CODES * KEY_CODES; slot++) {
+            if (!used.contains(slot)) {
+                return slot;
+            }
+        }
+        throw new IOException("No free logo key code left on the printer");
+    }
+
+    private static String entryKey(String identity, String key) {
+        return identity + "|" + key;
+    }
+
+    private static byte keyCode1(int slot) {
+        return (byte) (FIRST_KEY_CODE + slot / KEY_CODES);
+    }
+
+    private static byte keyCode2(int slot) {
+        return (byte) (FIRST_KEY_CODE + slot % KEY_CODES);
+    }
+}
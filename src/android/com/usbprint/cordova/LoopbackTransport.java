@@ -0,0 +1,90 @@
+package com.usbprint.cordova;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory {@link PrinterTransport}. Written bytes are kept in a growing buffer
+ * (or only counted when discarding), and replies can be queued with
+ * {@link #respond(byte[])} for status readers.
+ */
+public class LoopbackTransport implements PrinterTransport {
+
+    private final boolean discard;
+    private final BlockingQueue<byte[]> replies = new ArrayBlockingQueue<byte[]>(64);
+    private ByteBuffer received = ByteBuffer.allocate(4 * 1024);
+    private long bytesWritten = 0;
+
+    public LoopbackTransport(boolean discard) {
+        this.discard = discard;
+    }
+
+    public synchronized int write(ByteBuffer data) {
+        int length = data.remaining();
+        if (discard) {
+            data.position(data.limit());
+        } else {
+            if (received.remaining() < length) {
+                int capacity = received.capacity() * 2;
+                while (capacity - received.position() < length) {
+                    capacity *= 2;
+                }
+                ByteBuffer grown = ByteBuffer.allocate(capacity);
+                received.flip();
+                grown.put(received);
+                received = grown;
+            }
+            received.put(data);
+        }
+        bytesWritten += length;
+        return length;
+    }
+
+    public int read(byte[] buffer, int length, int timeoutMs) throws IOException {
+        byte[] reply;
+        try {
+            reply = replies.poll(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException exp) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading");
+        }
+        if (reply == null) {
+            return -1;
+        }
+        int n = Math.min(length, reply.length);
+        System.arraycopy(reply, 0, buffer, 0, n);
+        return n;
+    }
+
+    public boolean canRead() {
+        return true;
+    }
+
+    /** Queues bytes to be returned by the next read. */
+    public void respond(byte[] reply) {
+        replies.offer(reply);
+    }
+
+    public synchronized byte[] toByteArray() {
+        byte[] copy = new byte[received.position()];
+        ByteBuffer view = received.duplicate();
+        view.flip();
+        view.get(copy);
+        return copy;
+    }
+
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public synchronized void reset() {
+        received.clear();
+        bytesWritten = 0;
+    }
+
+    public void close() {
+    }
+}
@@ -0,0 +1,17 @@
+package com.usbprint.cordova;
+
+/**
+ * Callback of a JS call. The plugin implements it over Cordova's
+ * CallbackContext ({@link CordovaCallback}), so jobs, events and streams do not
+ * depend on Cordova themselves.
+ */
+public interface PluginCallback {
+
+    /**
+     * Sends the message, a String, JSONObject or JSONArray (anything else is sent
+     * as its string value). keep leaves the callback open for further results.
+     */
+    void success(Object message, boolean keep);
+
+    void error(String message);
+}
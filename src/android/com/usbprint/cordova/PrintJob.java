@@ -0,0 +1,316 @@
+package com.usbprint.cordova;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+public abstract class PrintJob implements Runnable, Comparable<PrintJob> {
+
+    public static final int PRIORITY_HIGH = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_LOW = 2;
+    static final String CANCELLED = "Job was cancelled";
+    private static final String TAG = "USBPrint";
+    private static final AtomicInteger sequence = new AtomicInteger(0);
+    private static final ThreadLocal<PrintJob> current = new ThreadLocal<PrintJob>();
+    private final int jobId;
+    private final PluginCallback callback;
+    private final long createdAt;
+    private Printer printer;
+    private PrinterGroup group;
+    private boolean announced = false;
+    private final boolean pipelined;
+    private Object result;
+    private volatile String transmitError = null;
+    private volatile int priority = PRIORITY_NORMAL;
+    private final AtomicBoolean claimed = new AtomicBoolean(false);
+    private volatile boolean cancelled = false;
+    private volatile boolean sent = false;
+    private final AtomicBoolean reset = new AtomicBoolean(false);
+    private volatile boolean spooling = false;
+
+    public PrintJob(PluginCallback callback) {
+        this(callback, false);
+    }
+
+    /**
+     * A pipelined job only renders on the printer's worker: its transfers are
+     * written by the printer's {@link TransmitPipeline} while the next job
+     * renders, and it completes once they are all written. Jobs which need the
+     * outcome of each transfer while they run are not pipelined; they wait for
+     * the pipeline to drain and write synchronously.
+     */
+    public PrintJob(PluginCallback callback, boolean pipelined) {
+        this.jobId = sequence.incrementAndGet();
+        this.callback = callback;
+        this.createdAt = System.nanoTime();
+        this.pipelined = pipelined;
+    }
+
+    public int getJobId() {
+        return jobId;
+    }
+
+    /** Whether cancelling jobId cancels this job. */
+    boolean matches(int jobId) {
+        return this.jobId == jobId;
+    }
+
+    /** Parses "high", "normal" or "low", defaulting to normal. */
+    public static int priorityOf(String name) {
+        if ("high".equals(name)) {
+            return PRIORITY_HIGH;
+        }
+        return "low".equals(name) ? PRIORITY_LOW : PRIORITY_NORMAL;
+    }
+
+    /**
+     * Jobs run by priority, and in submission order within a priority. A high
+     * priority job is never pipelined and may run right after a transfer of the
+     * job it preempts, on that transfer's thread, so it should only send commands
+     * and not hold the printer's lock (e.g. through sendMsg).
+     */
+    public PrintJob setPriority(int priority) {
+        this.priority = priority;
+        return this;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Whether high priority jobs may run after each transfer of this job. Jobs
+     * whose transfers are not whole commands, such as a stream's chunks, return
+     * false.
+     */
+    protected boolean isPreemptible() {
+        return this.priority != PRIORITY_HIGH;
+    }
+
+    public int compareTo(PrintJob other) {
+        if (this.priority != other.priority) {
+            return this.priority < other.priority ? -1 : 1;
+        }
+        return this.jobId < other.jobId ? -1 : (this.jobId == other.jobId ? 0 : 1);
+    }
+
+    /** The job running on the current thread, if any. */
+    static PrintJob current() {
+        return current.get();
+    }
+
+    /** Takes the job for running; false if it already ran or was cancelled while queued. */
+    boolean claim() {
+        return this.claimed.compareAndSet(false, true);
+    }
+
+    boolean isClaimed() {
+        return this.claimed.get();
+    }
+
+    void cancel() {
+        this.cancelled = true;
+    }
+
+    boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    /** Notes that part of the job reached the printer. */
+    void sentSome() {
+        this.sent = true;
+    }
+
+    /** Whether a cancelled job left a partial command on the printer needing a reset, true only once. */
+    boolean needsReset() {
+        return this.sent && this.reset.compareAndSet(false, true);
+    }
+
+    /** Fails a job cancelled before it ran. */
+    void dropped() {
+        this.cancelled = true;
+        if (this.callback != null && this.printer != null) {
+            this.printer.jobEvent(this, "failed", CANCELLED);
+        }
+        fail(CANCELLED);
+    }
+
+    /**
+     * Does the actual work on the printer's I/O thread and returns the message
+     * (a String, JSONObject or JSONArray) passed to the success callback. Any
+     * exception thrown is reported through the error callback.
+     */
+    protected abstract Object execute(Printer printer) throws Exception;
+
+    void attach(Printer printer) {
+        this.printer = printer;
+    }
+
+    /** Lets the group move the job to another member if its printer goes away before running it. */
+    void setGroup(PrinterGroup group) {
+        this.group = group;
+    }
+
+    boolean hasGroup() {
+        return this.group != null;
+    }
+
+    boolean isPipelined() {
+        return this.pipelined;
+    }
+
+    /** Whether the job runs after its printer went away, so its transfers are only journaled. */
+    boolean isSpooling() {
+        return this.spooling;
+    }
+
+    /** Records the first failed transfer; later transfers of the job are skipped. */
+    void transmitFailed(String message) {
+        if (this.transmitError == null) {
+            this.transmitError = message;
+        }
+    }
+
+    boolean hasFailed() {
+        return this.transmitError != null;
+    }
+
+    /** Called by the transmit pipeline once every transfer of the job was written. */
+    void transmitted() {
+        String error = this.transmitError;
+        finished(error);
+        if (error == null) {
+            complete(this.result);
+        } else {
+            fail(error);
+        }
+    }
+
+    /** Records the job's outcome in the printer's stats and reports it to the event channel. */
+    private void finished(String error) {
+        this.printer.jobEnded(this);
+        this.printer.getStats().jobDone(error == null, System.nanoTime() - this.createdAt);
+        if (this.callback != null) {
+            this.printer.jobEvent(this, error == null ? "done" : "failed", error);
+        }
+    }
+
+    void disconnected(Printer from) {
+        if (this.group != null) {
+            this.group.failover(this, from);
+        } else {
+            if (this.callback != null) {
+                from.jobEvent(this, "failed", "Printer is disconnected");
+            }
+            fail("Printer is disconnected");
+        }
+    }
+
+    void queued() {
+        if (this.announced) {
+            return;
+        }
+        this.announced = true;
+        if (this.callback != null) {
+            if (this.printer != null) {
+                this.printer.jobEvent(this, "queued", null);
+            }
+            try {
+                JSONObject status = new JSONObject().put("jobId", jobId).put("status", "queued");
+                this.callback.success(status, true);
+            } catch (JSONException err) {
+                PrintLog.e(TAG, "Exception in parsing to JSON object");
+            }
+        }
+    }
+
+    void complete(Object result) {
+        if (this.callback == null) {
+            return;
+        }
+        this.callback.success(result, false);
+    }
+
+    void fail(String message) {
+        if (this.callback != null) {
+            this.callback.error(message);
+        }
+    }
+
+    /**
+     * Runs a job left queued when its printer was closed. With a spool its
+     * transfers are journaled without being sent, so it prints once the same
+     * printer is connected again, and it fails saying so; without one, or in a
+     * group, it is handled as disconnected.
+     */
+    private void spool() {
+        if (this.group != null || this.printer.getSpool() == null) {
+            this.claimed.set(false);
+            disconnected(this.printer);
+            return;
+        }
+        String error = Printer.SPOOLED;
+        PrintJob previous = current.get();
+        current.set(this);
+        this.spooling = true;
+        try {
+            execute(this.printer);
+            this.printer.getSpool().sync();
+        } catch (Exception exp) {
+            error = exp.getMessage() != null ? exp.getMessage() : exp.toString();
+            PrintLog.e(TAG, "Print job " + jobId + " could not be spooled on printer " + this.printer.getPrinterName(), exp);
+        } finally {
+            current.set(previous);
+        }
+        finished(error);
+        fail(error);
+    }
+
+    @Override
+    public void run() {
+        if (!claim()) {
+            // Already run ahead of its turn by a preempted transfer, or cancelled.
+            return;
+        }
+        if (this.printer.isClosed()) {
+            spool();
+            return;
+        }
+        boolean urgent = this.priority == PRIORITY_HIGH;
+        boolean pipelined = this.pipelined && !urgent && this.printer.isPipelined();
+        if (this.callback != null) {
+            this.printer.jobEvent(this, "started", null);
+        }
+        PrintJob previous = current.get();
+        current.set(this);
+        this.printer.jobStarted(this);
+        try {
+            if (pipelined) {
+                this.printer.beginRender(this);
+            } else if (!urgent) {
+                this.printer.drainPipeline();
+            }
+            Object result = execute(this.printer);
+            if (pipelined) {
+                this.result = result;
+                this.printer.endRender(this, true);
+                return;
+            }
+            finished(null);
+            complete(result);
+        } catch (Exception exp) {
+            if (pipelined) {
+                this.printer.endRender(this, false);
+            }
+            String message = exp.getMessage() != null ? exp.getMessage() : exp.toString();
+            finished(message);
+            PrintLog.e(TAG, "Print job " + jobId + " failed on printer " + this.printer.getPrinterName(), exp);
+            fail(message);
+        } finally {
+            current.set(previous);
+        }
+    }
+}
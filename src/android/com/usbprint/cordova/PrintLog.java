@@ -0,0 +1,47 @@
+package com.usbprint.cordova;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Log used by the classes which do not depend on Android, so they also build
+ * and run on a plain JVM. Messages go to java.util.logging until the plugin
+ * routes them to logcat with {@link #setSink(Sink)}.
+ */
+public final class PrintLog {
+
+    public interface Sink {
+        void d(String tag, String msg);
+
+        void e(String tag, String msg, Throwable tr);
+    }
+
+    private static volatile Sink sink = new Sink() {
+        public void d(String tag, String msg) {
+            Logger.getLogger(tag).fine(msg);
+        }
+
+        public void e(String tag, String msg, Throwable tr) {
+            Logger.getLogger(tag).log(Level.SEVERE, msg, tr);
+        }
+    };
+
+    private PrintLog() {
+    }
+
+    public static void setSink(Sink logSink) {
+        sink = logSink;
+    }
+
+    public static void d(String tag, String msg) {
+        sink.d(tag, msg);
+    }
+
+    public static void e(String tag, String msg) {
+        sink.e(tag, msg, null);
+    }
+
+    public static void e(String tag, String msg, Throwable tr) {
+        sink.e(tag, msg, tr);
+    }
+}
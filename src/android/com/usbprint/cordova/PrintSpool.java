@@ -0,0 +1,315 @@
+package com.usbprint.cordova;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the bytes sent to one printer, kept in a memory-mapped
+ * file of fixed size. Every transfer is appended, committed to disk before it is
+ * transmitted and marked done afterwards, so what was not confirmed by the
+ * printer can be replayed in order once the same printer is connected again,
+ * also after an app restart.
+ *
+ * Appending does not force the file: {@link #commit(long)} does, once for all
+ * the records appended so far, so transfers rendered ahead of the printer share
+ * a single msync. Done marks are not forced on their own but with the next
+ * commit or on {@link #sync()}, so a crash right after a transfer may print it
+ * twice but never loses it. When the file is full the pending records are
+ * compacted into a new file which replaces the old one.
+ */
+public class PrintSpool {
+
+    private static final String TAG = "USBPrint";
+    private static final byte RECORD_END = 0;
+    private static final byte RECORD_DATA = 1;
+    private static final byte RECORD_DONE = 2;
+    private static final int DATA_HEADER = 1 + 8 + 4 + 4;
+    private static final int DONE_LENGTH = 1 + 8 + 4;
+
+    private final File file;
+    private final int capacity;
+    private final LinkedHashMap<Long, Entry> pending = new LinkedHashMap<Long, Entry>();
+    private final CRC32 crc = new CRC32();
+    private final byte[] scratch = new byte[8192];
+    private final Object commitLock = new Object();
+    private MappedByteBuffer map;
+    private long sequence = 0;
+    private volatile long committed = 0;
+
+    private static class Entry {
+        int position;
+        int length;
+        int sent;
+
+        Entry(int position, int length, int sent) {
+            this.position = position;
+            this.length = length;
+            this.sent = sent;
+        }
+    }
+
+    /** Opens the journal in the file, creating it with the given size if it does not exist. */
+    public PrintSpool(File file, int capacity) throws IOException {
+        this.file = file;
+        this.capacity = capacity;
+        this.map = mapFile(file, capacity);
+        recover();
+    }
+
+    /** File name for the printer's journal, derived from its vendor/product/serial identity. */
+    public static String fileNameOf(String identity) {
+        return identity.replaceAll("[^A-Za-z0-9._-]", "_") + ".spool";
+    }
+
+    private static MappedByteBuffer mapFile(File file, int capacity) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() != capacity) {
+                raf.setLength(capacity);
+            }
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /** Rebuilds the pending records from the file, stopping at the first incomplete one. */
+    private void recover() {
+        ByteBuffer log = this.map;
+        log.position(0);
+        while (log.remaining() > 0) {
+            int start = log.position();
+            byte type = log.get();
+            if (type == RECORD_DATA && log.remaining() >= DATA_HEADER - 1) {
+                long seq = log.getLong();
+                int length = log.getInt();
+                int checksum = log.getInt();
+                if (seq <= sequence || length < 0 || length > log.remaining()
+                        || checksum != checksum(log, log.position(), length)) {
+                    log.position(start);
+                    break;
+                }
+                sequence = seq;
+                committed = seq;
+                pending.put(seq, new Entry(log.position(), length, 0));
+                log.position(log.position() + length);
+            } else if (type == RECORD_DONE && log.remaining() >= DONE_LENGTH - 1) {
+                long seq = log.getLong();
+                int sent = log.getInt();
+                Entry entry = pending.get(seq);
+                if (entry != null) {
+                    if (sent >= entry.length) {
+                        pending.remove(seq);
+                    } else {
+                        entry.sent = Math.max(entry.sent, sent);
+                    }
+                }
+            } else {
+                log.position(start);
+                break;
+            }
+        }
+        if (!pending.isEmpty()) {
+            PrintLog.d(TAG, pending.size() + " unprinted transfers found in " + file.getName());
+        }
+    }
+
+    private int checksum(ByteBuffer log, int position, int length) {
+        ByteBuffer payload = log.duplicate();
+        payload.limit(position + length).position(position);
+        crc.reset();
+        while (payload.hasRemaining()) {
+            int n = Math.min(scratch.length, payload.remaining());
+            payload.get(scratch, 0, n);
+            crc.update(scratch, 0, n);
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Journals the remaining bytes of the buffer, without consuming them, and
+     * returns the record's sequence number, or -1 when the transfer alone is
+     * larger than the journal and is sent unjournaled. The record is only
+     * durable once committed.
+     */
+    public synchronized long append(ByteBuffer data) throws IOException {
+        int length = data.remaining();
+        if (DATA_HEADER + length + 1 > capacity) {
+            PrintLog.d(TAG, "Transfer of " + length + " bytes is too large for " + file.getName());
+            return -1;
+        }
+        if (map.remaining() < DATA_HEADER + length + 1) {
+            compact();
+            if (map.remaining() < DATA_HEADER + length + 1) {
+                throw new IOException("Print spool is full");
+            }
+        }
+        long seq = ++sequence;
+        int start = map.position();
+        map.position(start + DATA_HEADER);
+        map.put(data.duplicate());
+        int checksum = checksum(map, start + DATA_HEADER, length);
+        map.put(RECORD_END);
+        map.position(start);
+        map.put(RECORD_DATA).putLong(seq).putInt(length).putInt(checksum);
+        map.position(start + DATA_HEADER + length);
+        pending.put(seq, new Entry(start + DATA_HEADER, length, 0));
+        return seq;
+    }
+
+    /**
+     * Forces the record to disk, together with every record appended before or
+     * since, unless a commit by another transfer already covered it.
+     */
+    public void commit(long seq) {
+        if (seq <= committed) {
+            return;
+        }
+        synchronized (commitLock) {
+            if (seq <= committed) {
+                return;
+            }
+            MappedByteBuffer log;
+            long last;
+            synchronized (this) {
+                log = map;
+                last = sequence;
+            }
+            // Forced outside the journal's lock, so the worker keeps appending meanwhile.
+            log.force();
+            committed = last;
+        }
+    }
+
+    /** Marks the record as printed. */
+    public synchronized void done(long seq) {
+        Entry entry = pending.remove(seq);
+        if (entry != null) {
+            mark(seq, entry.length);
+        }
+    }
+
+    /** Records that the first sent bytes of the record reached the printer. */
+    public synchronized void progress(long seq, int sent) {
+        Entry entry = pending.get(seq);
+        if (entry != null && sent > entry.sent) {
+            entry.sent = Math.min(sent, entry.length);
+            mark(seq, entry.sent);
+        }
+    }
+
+    private void mark(long seq, int sent) {
+        if (map.remaining() < DONE_LENGTH + 1) {
+            // Compacting drops the record or its sent part, which is all the mark would say.
+            try {
+                compact();
+            } catch (IOException exp) {
+                PrintLog.e(TAG, "Unable to compact " + file.getName(), exp);
+            }
+            return;
+        }
+        int start = map.position();
+        map.position(start + DONE_LENGTH);
+        map.put(RECORD_END);
+        map.position(start);
+        map.put(RECORD_DONE).putLong(seq).putInt(sent);
+    }
+
+    public synchronized boolean hasPending() {
+        return !pending.isEmpty();
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /** Sequence number of the first unprinted record after the given one, or -1. */
+    public synchronized long nextPending(long after) {
+        for (Long seq : pending.keySet()) {
+            if (seq > after) {
+                return seq;
+            }
+        }
+        return -1;
+    }
+
+    /** Copy of the bytes of the record which have not reached the printer yet, or null if it is printed. */
+    public synchronized ByteBuffer read(long seq) {
+        Entry entry = pending.get(seq);
+        if (entry == null) {
+            return null;
+        }
+        ByteBuffer payload = map.duplicate();
+        payload.limit(entry.position + entry.length).position(entry.position + entry.sent);
+        ByteBuffer copy = ByteBuffer.allocate(payload.remaining());
+        copy.put(payload);
+        copy.flip();
+        return copy;
+    }
+
+    /** Returns the number of bytes of the record already sent. */
+    public synchronized int getSent(long seq) {
+        Entry entry = pending.get(seq);
+        return entry != null ? entry.sent : 0;
+    }
+
+    /** Forces outstanding records and done marks to disk. */
+    public synchronized void sync() {
+        map.force();
+        committed = sequence;
+    }
+
+    /**
+     * Rewrites the unsent part of the pending records to the start of a new file
+     * and swaps it in, so a crash midway leaves the old journal intact.
+     */
+    private void compact() throws IOException {
+        if (pending.isEmpty()) {
+            map.position(0);
+            map.put(RECORD_END);
+            map.position(0);
+            map.force();
+            return;
+        }
+        File compacted = new File(file.getPath() + ".tmp");
+        MappedByteBuffer next = mapFile(compacted, capacity);
+        ByteBuffer source = map.duplicate();
+        int[] positions = new int[pending.size()];
+        int i = 0;
+        for (Map.Entry<Long, Entry> record : pending.entrySet()) {
+            Entry entry = record.getValue();
+            int length = entry.length - entry.sent;
+            int start = next.position();
+            source.limit(entry.position + entry.length).position(entry.position + entry.sent);
+            next.position(start + DATA_HEADER);
+            next.put(source);
+            next.position(start);
+            next.put(RECORD_DATA).putLong(record.getKey()).putInt(length)
+                    .putInt(checksum(next, start + DATA_HEADER, length));
+            next.position(start + DATA_HEADER + length);
+            positions[i++] = start + DATA_HEADER;
+        }
+        int end = next.position();
+        next.put(RECORD_END);
+        next.position(end);
+        next.force();
+        if (!compacted.renameTo(file)) {
+            throw new IOException("Unable to replace " + file.getName());
+        }
+        this.map = next;
+        i = 0;
+        for (Entry entry : pending.values()) {
+            entry.position = positions[i++];
+            entry.length -= entry.sent;
+            entry.sent = 0;
+        }
+        PrintLog.d(TAG, "Compacted " + file.getName() + " to " + pending.size() + " records");
+    }
+}
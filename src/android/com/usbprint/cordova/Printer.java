@@ -1,93 +1,506 @@
 package com.usbprint.cordova;
 
-import android.hardware.usb.UsbConstants;
-import android.hardware.usb.UsbDevice;
-import android.hardware.usb.UsbEndpoint;
-import android.hardware.usb.UsbManager;
-import android.hardware.usb.UsbInterface;
-import android.hardware.usb.UsbDeviceConnection;
-import android.util.Log;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
-import java.io.UnsupportedEncodingException;
-
-import org.apache.cordova.CallbackContext;
-import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
 
 public class Printer {
 
     private static final String TAG = "USBPrint";
+    private static final int MAX_QUEUED_JOBS = 64;
+    private static final int PORT_STATUS_READY = 0x18;
+    private static final long DEFAULT_STATUS_TTL_MS = 2000;
+    private static final int SEGMENT_SIZE = 16 * 1024;
+    private static final byte[] RESET = new byte[] { 27, 64 };
+    static final String SPOOLED = "Printer is disconnected, data is spooled until it is reconnected";
+    private static final ScheduledExecutorService scheduler = Executors
+            .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "USBPrint-status");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
     private String printername = null;
-    private boolean connected = false;
-    private UsbDevice device;
-    private UsbManager usbManager;
-    private UsbEndpoint ep = null;
-    private UsbInterface usbInt = null;
-    private UsbDeviceConnection conn = null;
-    private CallbackContext callbackContext;
-
-    public Printer(UsbManager usbManager, UsbDevice usbDevice, String printer_name, CallbackContext callbackContext) {
-        this.usbManager = usbManager;
-        this.device = usbDevice;
+    private volatile boolean connected = false;
+    private volatile boolean closed = false;
+    private PrinterTransport transport = null;
+    private TextEncoder encoder = null;
+    private PluginCallback callback;
+    private final ThreadPoolExecutor worker;
+    private final Semaphore queueSlots = new Semaphore(MAX_QUEUED_JOBS);
+    private final Object statusLock = new Object();
+    private volatile PrinterStatus status = null;
+    private volatile long statusTtlMs = DEFAULT_STATUS_TTL_MS;
+    private volatile PluginCallback statusCallback = null;
+    private ScheduledFuture<?> statusPolling = null;
+    private volatile StatusReader statusReader = null;
+    private final PrinterStats stats = new PrinterStats();
+    private ScheduledFuture<?> statsPush = null;
+    private volatile PrintSpool spool = null;
+    private volatile FlowControl flow = null;
+    private final Object transmitLock = new Object();
+    private final Object commandLock = new Object();
+    private TransmitPipeline pipeline;
+    private volatile PrintJob rendering = null;
+    private volatile EventChannel events = null;
+    private final Queue<PrintJob> urgent = new ConcurrentLinkedQueue<PrintJob>();
+    private final Map<Integer, PrintJob> active = new ConcurrentHashMap<Integer, PrintJob>();
+
+    /**
+     * Creates a printer writing to the given transport instead of a USB device,
+     * e.g. a {@link LoopbackTransport} or {@link FileTransport}. Such a printer
+     * always reports itself as online with paper.
+     */
+    public Printer(String printer_name, PrinterTransport transport) {
+        this(printer_name, (PluginCallback) null);
+        this.transport = transport;
+    }
+
+    /**
+     * Creates a printer whose transport is opened by {@link #openPort()} when it
+     * is first needed. The callback is told "Connected" and, once the printer is
+     * closed, "DisConnected".
+     */
+    protected Printer(String printer_name, PluginCallback callback) {
         this.printername = printer_name;
-        this.callbackContext = callbackContext;
+        this.callback = callback;
+        this.worker = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "USBPrint-" + printername);
+                    }
+                }) {
+            @Override
+            protected void beforeExecute(Thread t, Runnable r) {
+                // The job left the queue.
+                queueSlots.release();
+            }
+        };
+        this.pipeline = new TransmitPipeline(this);
     }
 
     public String getPrinterName() {
         return printername;
     }
 
+    public boolean isConnected() {
+        return connected;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Key which stays the same when the printer is replugged, see
+     * {@link UsbPrinter#getIdentity()}. Printers without a USB device are
+     * identified by their name.
+     */
+    public String getIdentity() {
+        return this.printername;
+    }
+
+    /**
+     * Journals every transfer to the spool before it is sent, and queues the
+     * transfers a previous connection to the same printer left unprinted ahead of
+     * any new job.
+     */
+    public void setSpool(PrintSpool spool) {
+        this.spool = spool;
+        if (spool != null && spool.hasPending()) {
+            submit(new PrintJob(null) {
+                protected Object execute(Printer printer) throws IOException {
+                    printer.replaySpool();
+                    return null;
+                }
+            });
+        }
+    }
+
+    public PrintSpool getSpool() {
+        return spool;
+    }
+
+    /** Reports the progress of this printer's jobs and its status changes to the channel. */
+    public void setEvents(EventChannel events) {
+        this.events = events;
+    }
+
+    void jobEvent(PrintJob job, String state, String error) {
+        EventChannel channel = this.events;
+        if (channel != null) {
+            channel.jobEvent(this.printername, job.getJobId(), state, error);
+        }
+    }
+
     public synchronized void changeStateToConnected() {
         this.connected = true;
-        if (this.callbackContext != null) {
-            PluginResult res = new PluginResult(PluginResult.Status.OK, "Connected");
-            res.setKeepCallback(true);
-            this.callbackContext.sendPluginResult(res);
+        if (this.callback != null) {
+            this.callback.success("Connected", true);
+        }
+        startStatusPolling();
+    }
+
+    /**
+     * Takes the callback of a connect call for a printer connected without one,
+     * e.g. at warm start, so it is told "Connected" and later "DisConnected" like
+     * the callback of the call which connected it. Returns false when the printer
+     * already has one or is closed.
+     */
+    public synchronized boolean adoptCallback(PluginCallback callback) {
+        if (this.callback != null || this.closed) {
+            return false;
+        }
+        this.callback = callback;
+        if (this.connected) {
+            callback.success("Connected", true);
+        }
+        return true;
+    }
+
+    public boolean isPaperAvailable() {
+        return !getStatus().isPaperOut();
+    }
+
+    /** Whether the cached status, without refreshing it, shows the printer ready to print. */
+    public boolean isHealthy() {
+        PrinterStatus current = this.status;
+        return current == null || (current.isOnline() && !current.isPaperOut() && !current.isError());
+    }
+
+    /**
+     * Returns the cached status, reading it from the printer only when it is
+     * older than the status TTL. The background poller normally keeps it fresh.
+     */
+    public PrinterStatus getStatus() {
+        PrinterStatus current = this.status;
+        if (current != null && this.statusReader != null) {
+            return current;
+        }
+        if (current == null || current.getAge() >= this.statusTtlMs) {
+            current = refreshStatus();
+        }
+        return current;
+    }
+
+    public PrinterStatus refreshStatus() {
+        long start = System.nanoTime();
+        int portStatus = readPortStatus();
+        this.stats.statusChecked(System.nanoTime() - start);
+        PrinterStatus next = PrinterStatus.fromPortStatus(portStatus == -1 ? -1 : portStatus & 0xff);
+        publishStatus(next);
+        return next;
+    }
+
+    /**
+     * Reads the GET_PORT_STATUS byte of the USB printer class, or -1 when the
+     * printer does not answer. Printers without a USB device are always ready.
+     */
+    protected int readPortStatus() {
+        return PORT_STATUS_READY;
+    }
+
+    /** Caches the status and pushes it to the status callback when the state changed. */
+    void publishStatus(PrinterStatus next) {
+        PrinterStatus previous = this.status;
+        this.status = next;
+        FlowControl control = this.flow;
+        if (control != null && !next.isOnline() && previous != null && previous.isOnline()) {
+            // A busy printer goes offline while its buffer is full, so back off until it drains.
+            control.congested();
+        }
+        EventChannel channel = this.events;
+        if (channel != null && !next.sameState(previous)) {
+            channel.statusEvent(this.printername, next);
+        }
+        PluginCallback listener = this.statusCallback;
+        if (listener != null && !next.sameState(previous)) {
+            try {
+                listener.success(next.toJSON().put("printername", this.printername), true);
+            } catch (JSONException err) {
+                PrintLog.e(TAG, "Exception in parsing to JSON object");
+            }
+        }
+    }
+
+    /**
+     * Registers the callback receiving every status change and sets how long a
+     * cached status stays valid, which is also the polling interval.
+     */
+    public void watchStatus(PluginCallback callback, long ttlMs) {
+        this.statusCallback = callback;
+        if (ttlMs > 0) {
+            this.statusTtlMs = ttlMs;
+        }
+        startStatusPolling();
+        PrinterStatus current = this.status;
+        if (current != null && callback != null) {
+            this.status = null;
+            publishStatus(current);
+        }
+    }
+
+    /**
+     * Starts reading real-time status from the bulk IN endpoint, using Automatic
+     * Status Back when asb is set and DLE EOT queries otherwise. Control transfer
+     * polling stops while the reader runs.
+     */
+    public synchronized void startStatusReader(PluginCallback callback, boolean asb) throws IOException {
+        if (this.transport == null) {
+            openTransport();
+        }
+        if (!this.transport.canRead()) {
+            throw new IOException("Printer has no bulk IN endpoint");
+        }
+        stopStatusReader();
+        stopStatusPolling();
+        this.statusCallback = callback;
+        this.statusReader = new StatusReader(this, this.transport, asb, this.statusTtlMs);
+        this.statusReader.start();
+    }
+
+    public synchronized void stopStatusReader() {
+        if (this.statusReader != null) {
+            this.statusReader.stop();
+            this.statusReader = null;
+            if (this.connected) {
+                startStatusPolling();
+            }
+        }
+    }
+
+    private void startStatusPolling() {
+        synchronized (this.statusLock) {
+            if (this.statusPolling != null) {
+                this.statusPolling.cancel(false);
+            }
+            this.statusPolling = scheduler.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    if (isPermissionGranted()) {
+                        refreshStatus();
+                    }
+                }
+            }, 0, this.statusTtlMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void stopStatusPolling() {
+        synchronized (this.statusLock) {
+            if (this.statusPolling != null) {
+                this.statusPolling.cancel(false);
+                this.statusPolling = null;
+            }
+        }
+    }
+
+    private void stopStatsPush() {
+        synchronized (this.statusLock) {
+            if (this.statsPush != null) {
+                this.statsPush.cancel(false);
+                this.statsPush = null;
+            }
         }
     }
 
-    public byte revByte() {
-        byte[] bits = new byte[2];
+    /**
+     * Queues the job on this printer's I/O thread, ahead of the queued jobs of
+     * lower priority, and returns its job id right away, or -1 when the job could
+     * not be queued. A high priority job also runs as soon as the transfer in
+     * progress is written, ahead of the rest of the job it belongs to.
+     */
+    public int submit(PrintJob job) {
+        job.attach(this);
+        if (this.worker.isShutdown()) {
+            job.disconnected(this);
+            return -1;
+        }
+        if (!this.queueSlots.tryAcquire()) {
+            job.fail("Printer queue is full");
+            return -1;
+        }
+        job.queued();
         try {
-            if (this.conn == null) {
-                this.conn = this.usbManager.openDevice(this.device);
+            this.worker.execute(job);
+            if (job.getPriority() == PrintJob.PRIORITY_HIGH) {
+                this.urgent.add(job);
+            }
+            this.stats.queued(this.worker.getQueue().size());
+        } catch (RejectedExecutionException exp) {
+            this.queueSlots.release();
+            if (this.worker.isShutdown()) {
+                job.disconnected(this);
+            } else {
+                job.fail("Printer queue is full");
             }
-            this.conn.controlTransfer(161, 1, 0, 0, bits, bits.length, 0);
-        } catch (Exception exp) {
-            Log.e(TAG, "Exception thrown while connecting to usb printer", exp);
-            this.close();
-            return bits[0];
+            return -1;
         }
-        return bits[0];
+        return job.getJobId();
     }
 
-    public boolean isPaperAvailable() {
-        byte isHasPaper = this.revByte();
-        if (isHasPaper == 0x38) {
-            return false;
-        } else {
-            return true;
+    boolean isPipelined() {
+        return this.pipeline != null;
+    }
+
+    /** Routes the transfers of the job run on the worker through the transmit pipeline. */
+    void beginRender(PrintJob job) {
+        this.rendering = job;
+    }
+
+    /** Ends the job's render stage and, when it rendered completely, queues its completion. */
+    void endRender(PrintJob job, boolean rendered) {
+        this.rendering = null;
+        if (rendered) {
+            this.pipeline.finish(job);
+        }
+    }
+
+    /** Waits until every transfer handed to the transmit pipeline has been written. */
+    void drainPipeline() throws InterruptedException {
+        TransmitPipeline stage = this.pipeline;
+        if (stage != null) {
+            stage.drain();
+        }
+    }
+
+    void jobStarted(PrintJob job) {
+        this.active.put(job.getJobId(), job);
+    }
+
+    void jobEnded(PrintJob job) {
+        this.active.remove(job.getJobId());
+    }
+
+    /**
+     * Cancels the job. A queued job is dropped; a running one stops before its
+     * next transfer, so the printer is never left inside a command, and if part of
+     * it already reached the printer ESC @ is sent to clear the modes it set.
+     * Returns false when the job is neither queued nor running on this printer.
+     */
+    public boolean cancel(int jobId) {
+        for (Runnable queued : this.worker.getQueue()) {
+            PrintJob job = (PrintJob) queued;
+            if (job.matches(jobId) && job.claim()) {
+                if (this.worker.remove(job)) {
+                    this.queueSlots.release();
+                }
+                this.urgent.remove(job);
+                job.dropped();
+                return true;
+            }
+        }
+        for (PrintJob job : this.active.values()) {
+            if (job.matches(jobId)) {
+                job.cancel();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getQueueDepth() {
+        return this.worker.getQueue().size();
+    }
+
+    public PrinterStats getStats() {
+        return this.stats;
+    }
+
+    public JSONObject getStatsJSON() throws JSONException {
+        JSONObject result = this.stats.toJSON(getQueueDepth()).put("printername", this.printername);
+        FlowControl control = this.flow;
+        if (control != null) {
+            result.put("flow", control.toJSON());
+        }
+        return result;
+    }
+
+    /**
+     * Pushes the stats to the callback every intervalMs milliseconds until the
+     * printer is closed, or stops pushing when intervalMs is 0.
+     */
+    public void watchStats(final PluginCallback callback, long intervalMs) {
+        stopStatsPush();
+        if (intervalMs <= 0) {
+            return;
+        }
+        synchronized (this.statusLock) {
+            this.statsPush = scheduler.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        callback.success(getStatsJSON(), true);
+                    } catch (JSONException err) {
+                        PrintLog.e(TAG, "Exception in parsing to JSON object");
+                    }
+                }
+            }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
         }
     }
 
     public boolean isPermissionGranted() {
-        return this.usbManager.hasPermission(this.device);
+        return true;
     }
 
-    public synchronized void close() {
+    /**
+     * Disconnects the printer. The jobs still queued are drained by the worker:
+     * their transfers only go to the spool, to be printed once the same printer
+     * is connected again, or they fail as disconnected when there is no spool.
+     */
+    public void close() {
+        this.closed = true;
+        StatusReader reader = this.statusReader;
+        if (reader != null) {
+            reader.stop();
+            this.statusReader = null;
+        }
+        stopStatusPolling();
+        stopStatsPush();
+        this.statusCallback = null;
+        this.worker.shutdown();
+        this.urgent.clear();
+        PrintSpool journal = this.spool;
+        TransmitPipeline stage = this.pipeline;
+        if (stage != null) {
+            stage.stop(journal != null ? SPOOLED : "Printer is disconnected");
+        }
+        closeConnection();
+        if (journal != null) {
+            journal.sync();
+        }
+    }
+
+    private synchronized void closeConnection() {
         this.connected = false;
-        if (this.conn != null) {
-            this.conn.close();
-            this.ep = null;
-            this.usbInt = null;
-            this.conn = null;
+        synchronized (this.transmitLock) {
+            if (this.transport != null) {
+                this.transport.close();
+                this.transport = null;
+            }
+            closePort();
         }
-        if (this.callbackContext != null) {
-            this.callbackContext.error("DisConnected");
-            this.callbackContext = null;
+        if (this.callback != null) {
+            this.callback.error("DisConnected");
+            this.callback = null;
         }
     }
 
-    public synchronized void cutPaper(int n) {
+    public void cutPaper(int n) throws IOException {
         byte[] bits = new byte[4];
         bits[0] = 29;
         bits[1] = 86;
@@ -96,7 +509,7 @@ public class Printer {
         sendByte(bits);
     }
 
-    public synchronized void catPaperByMode(int mode) {
+    public void catPaperByMode(int mode) throws IOException {
         byte[] bits = new byte[3];
         switch (mode) {
         case 0:
@@ -113,7 +526,7 @@ public class Printer {
         sendByte(bits);
     }
 
-    public synchronized void openCashBox() {
+    public void openCashBox() throws IOException {
         byte[] bits = new byte[5];
         bits[0] = 27;
         bits[1] = 112;
@@ -123,7 +536,7 @@ public class Printer {
         sendByte(bits);
     }
 
-    public synchronized void defaultBuzzer() {
+    public void defaultBuzzer() throws IOException {
         byte[] bits = new byte[4];
         bits[0] = 27;
         bits[1] = 66;
@@ -132,7 +545,7 @@ public class Printer {
         sendByte(bits);
     }
 
-    public synchronized void buzzer(int n, int time) {
+    public void buzzer(int n, int time) throws IOException {
         byte[] bits = new byte[4];
         bits[0] = 27;
         bits[1] = 66;
@@ -141,7 +554,7 @@ public class Printer {
         sendByte(bits);
     }
 
-    public synchronized void setBuzzerMode(int n, int time, int mode) {
+    public void setBuzzerMode(int n, int time, int mode) throws IOException {
         byte[] bits = new byte[5];
         bits[0] = 27;
         bits[1] = 67;
@@ -151,45 +564,298 @@ public class Printer {
         sendByte(bits);
     }
 
-    public synchronized void sendMsg(String msg, String charset) {
+    public synchronized void sendMsg(String msg, String charset) throws IOException {
         if (msg.length() == 0) {
             return;
         }
-        byte[] send;
-        try {
-            send = msg.getBytes(charset);
-        } catch (UnsupportedEncodingException e) {
-            send = msg.getBytes();
+        sendBuffer(getEncoder(charset).encodeLine(msg));
+    }
+
+    /**
+     * Returns this printer's encoder for the charset, keeping its encoders and
+     * output buffer around for the next call.
+     */
+    public synchronized TextEncoder getEncoder(String charset) {
+        if (this.encoder == null || !this.encoder.getCharset().equals(charset)) {
+            this.encoder = new TextEncoder(charset);
+        }
+        return this.encoder;
+    }
+
+    /**
+     * Opens the device, claims its interface, discovers the endpoints and sets up
+     * the encoder for the charset, so the first job does not pay for them.
+     */
+    public void warmUp(String charset) throws IOException {
+        openTransport();
+        synchronized (this) {
+            TextEncoder enc = getEncoder(charset);
+            enc.encodeLine("0");
+            enc.displayWidth('\u4e2d');
+        }
+    }
+
+    /**
+     * Encodes the messages back to back, each followed by CRLF, into the
+     * encoder's reused direct buffer and streams it as a single transfer. The end
+     * offset of every message is stored in ends so callers can tell which ones
+     * were fully sent from the number of bytes written.
+     */
+    public synchronized int sendBatch(String[] msgs, String charset, int[] ends) throws IOException {
+        TextEncoder enc = getEncoder(charset).begin();
+        for (int i = 0; i < msgs.length; i++) {
+            if (msgs[i] != null && msgs[i].length() > 0) {
+                enc.append(msgs[i]).restoreCodePage().append((byte) 13).append((byte) 10);
+            }
+            ends[i] = enc.position();
+        }
+        return sendBuffer(enc.finish());
+    }
+
+    public synchronized int sendTemplate(ReceiptTemplate template, JSONObject data) throws IOException {
+        return sendTemplate(template, data, null);
+    }
+
+    public synchronized int sendTable(TableLayout table, JSONArray rows, String charset) throws IOException {
+        return sendBuffer(table.render(rows, getEncoder(charset)));
+    }
+
+    /** Prints the template, taking the logos it references from this printer's NV memory. */
+    public synchronized int sendTemplate(ReceiptTemplate template, JSONObject data, LogoCache logos)
+            throws IOException {
+        return sendBuffer(template.render(data, getEncoder(template.getCharset()), logos, getIdentity()));
+    }
+
+    /**
+     * Writes a command straight to the open transport, possibly between two
+     * segments of a transfer, without journaling it or counting it in the stats.
+     * Only real-time commands such as DLE EOT, which the printer handles as soon
+     * as they arrive, may be sent this way at any time; other commands only from a
+     * job on the printer's I/O thread, when nothing else is being transferred.
+     * Fails instead of reopening the device once the printer is closed.
+     */
+    void sendRealtime(byte[] command) throws IOException {
+        synchronized (this.transmitLock) {
+            if (this.closed || this.transport == null) {
+                throw new IOException("Printer is disconnected");
+            }
+            this.transport.write(ByteBuffer.wrap(command));
+        }
+    }
+
+    /**
+     * Sends the GS v 0 commands made by {@link ImageRasterizer} one band per
+     * transfer, so high priority jobs and cancels can go between two bands.
+     */
+    public int sendRaster(ByteBuffer raster) throws IOException {
+        int written = 0;
+        for (int pos = raster.position(); pos < raster.limit();) {
+            int end = ImageRasterizer.bandEnd(raster, pos);
+            ByteBuffer band = raster.duplicate();
+            band.position(pos);
+            band.limit(end);
+            written += sendBuffer(band);
+            pos = end;
         }
-        sendByte(send);
-        sendByte(new byte[] { 13, 10 });
+        return written;
     }
 
-    public void sendByte(byte[] bits) {
+    public int sendByte(byte[] bits) throws IOException {
         if (bits == null) {
+            return 0;
+        }
+        return sendBuffer(ByteBuffer.wrap(bits));
+    }
+
+    /**
+     * Streams the remaining bytes of the buffer to the printer and returns the
+     * number of bytes written. While a pipelined job renders on the worker the
+     * bytes are copied to the transmit pipeline instead, and the number of bytes
+     * queued is returned.
+     */
+    public int sendBuffer(ByteBuffer data) throws IOException {
+        PrintJob job = PrintJob.current();
+        if (job != null && job.isCancelled()) {
+            abort(job, -1);
+        }
+        PrintSpool journal = this.spool;
+        if (job != null && job.isSpooling()) {
+            int length = data.remaining();
+            if (journal.append(data) < 0) {
+                throw new IOException("Printer is disconnected");
+            }
+            data.position(data.limit());
+            return length;
+        }
+        long seq = journal != null ? journal.append(data) : -1;
+        TransmitPipeline stage = this.pipeline;
+        if (job != null && job == this.rendering && stage != null) {
+            return stage.enqueue(job, data, seq);
+        }
+        return transmit(data, seq, job);
+    }
+
+    /**
+     * Writes the transfer for the job (null for commands sent outside a job) and
+     * marks its spool record as printed. Only the transmit locks are held, so the
+     * worker can render meanwhile. A transfer holds whole commands, so the command
+     * lock is held for all of it and other transfers and resets only go between
+     * two transfers; large transfers are written in segments, between which only
+     * real-time commands ({@link #sendRealtime(byte[])}) are sent. A cancelled
+     * job stops before its next transfer, and once a preemptible job's transfer is
+     * written the high priority jobs waiting are run.
+     */
+    int transmit(ByteBuffer data, long seq, PrintJob job) throws IOException {
+        return transmit(data, seq, job, false);
+    }
+
+    /**
+     * When a write fails while the printer is connected the job fails, and its
+     * spool record is dropped so it is not printed again on the next reconnect
+     * after JS was told it failed; unless spooled is set, for transfers already
+     * promised to JS to be printed once the printer is back. After the printer
+     * was closed the record is always kept.
+     */
+    private int transmit(ByteBuffer data, long seq, PrintJob job, boolean spooled) throws IOException {
+        int written = 0;
+        synchronized (this.commandLock) {
+            if (seq >= 0) {
+                this.spool.commit(seq);
+            }
+            // Checked under the lock, so no transfer of the job follows the reset sent by another thread.
+            if (job != null && job.isCancelled()) {
+                abort(job, seq);
+            }
+            int sentBefore = seq >= 0 ? this.spool.getSent(seq) : 0;
+            while (data.hasRemaining()) {
+                ByteBuffer segment = data.duplicate();
+                segment.limit(Math.min(data.limit(), data.position() + SEGMENT_SIZE));
+                int count;
+                synchronized (this.transmitLock) {
+                    if (this.transport == null) {
+                        if (this.closed && seq >= 0) {
+                            throw new IOException(SPOOLED);
+                        }
+                        try {
+                            openTransport();
+                        } catch (IOException exp) {
+                            transferFailed(seq, sentBefore + written, spooled);
+                            throw exp;
+                        }
+                    }
+                    long start = System.nanoTime();
+                    try {
+                        count = this.transport.write(segment);
+                    } catch (TransferException exp) {
+                        transferFailed(seq, sentBefore + written + exp.getBytesWritten(), spooled);
+                        throw exp.after(written);
+                    }
+                    this.stats.transferDone(count, System.nanoTime() - start);
+                    if (job != null) {
+                        job.sentSome();
+                    }
+                }
+                data.position(data.position() + count);
+                written += count;
+            }
+            if (seq >= 0) {
+                this.spool.done(seq);
+            }
+        }
+        if (job != null && job.isPreemptible()) {
+            runUrgent();
+        }
+        return written;
+    }
+
+    /** Keeps the part of the failed transfer's spool record not sent yet, or drops it, see transmit. */
+    private void transferFailed(long seq, int sent, boolean spooled) {
+        if (seq < 0) {
             return;
         }
-        if ((this.ep != null) && (this.usbInt != null) && (this.conn != null)) {
-            this.conn.bulkTransfer(this.ep, bits, bits.length, 0);
+        if (spooled || this.closed) {
+            this.spool.progress(seq, sent);
         } else {
-            if (this.conn == null) {
-                this.conn = this.usbManager.openDevice(this.device);
+            this.spool.done(seq);
+        }
+    }
+
+    /** Drops the spool record of a transfer skipped because its job already failed. */
+    void skipped(long seq) {
+        if (seq >= 0 && !this.closed) {
+            this.spool.done(seq);
+        }
+    }
+
+    /** Runs the high priority jobs waiting, on the thread of the transfer they follow. */
+    private void runUrgent() {
+        PrintJob job;
+        while ((job = this.urgent.poll()) != null) {
+            job.run();
+        }
+    }
+
+    /**
+     * Stops a cancelled job: its spooled transfer is dropped, the printer is reset
+     * if it got part of the job, and the job fails.
+     */
+    private void abort(PrintJob job, long seq) throws IOException {
+        if (seq >= 0) {
+            this.spool.done(seq);
+        }
+        if (job.needsReset()) {
+            synchronized (this.commandLock) {
+                synchronized (this.transmitLock) {
+                    if (this.transport == null) {
+                        openTransport();
+                    }
+                    this.transport.write(ByteBuffer.wrap(RESET));
+                }
             }
-            if (this.device.getInterfaceCount() == 0) {
-                return;
+        }
+        throw new IOException(PrintJob.CANCELLED);
+    }
+
+    /** Sends the spooled transfers that did not reach the printer yet, oldest first. */
+    synchronized void replaySpool() throws IOException {
+        PrintSpool journal = this.spool;
+        int replayed = 0;
+        for (long seq = journal.nextPending(0); seq >= 0; seq = journal.nextPending(seq)) {
+            ByteBuffer data = journal.read(seq);
+            if (data != null) {
+                transmit(data, seq, PrintJob.current(), true);
+                replayed++;
             }
-            this.usbInt = this.device.getInterface(0);
-            if (this.usbInt.getEndpointCount() == 0) {
+        }
+        PrintLog.d(TAG, "Replayed " + replayed + " spooled transfers on printer " + this.printername);
+    }
+
+    private void openTransport() throws IOException {
+        synchronized (this.transmitLock) {
+            if (this.transport != null) {
                 return;
             }
-            for (int i = 0; i < this.usbInt.getEndpointCount(); i++) {
-                if ((this.usbInt.getEndpoint(i).getType() == 2) && (this.usbInt.getEndpoint(i).getDirection() != 128)) {
-                    this.ep = this.usbInt.getEndpoint(i);
-                }
-            }
-            if (this.conn.claimInterface(this.usbInt, true)) {
-                this.conn.bulkTransfer(this.ep, bits, bits.length, 0);
+            if (this.closed) {
+                throw new IOException("Printer is disconnected");
             }
+            this.transport = openPort();
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Opens the transport of a printer created without one, under the transmit
+     * lock. The transport a printer was created with is never reopened.
+     */
+    protected PrinterTransport openPort() throws IOException {
+        throw new IOException("Printer is disconnected");
+    }
+
+    /** Releases what {@link #openPort()} opened, once the transport is closed. */
+    protected void closePort() {
+    }
+
+    /** Lets the transport's flow control back off when the printer goes offline. */
+    void setFlowControl(FlowControl flow) {
+        this.flow = flow;
+    }
+}
@@ -0,0 +1,175 @@
+package com.usbprint.cordova;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Several printers addressed under one name. In balance mode each job goes to
+ * the healthy member with the shortest queue and moves to another member if its
+ * printer is detached before the job ran; in mirror mode every connected member
+ * prints the job and the callback gets one result per member.
+ */
+public class PrinterGroup {
+
+    private static final String TAG = "USBPrint";
+    public static final String MODE_BALANCE = "balance";
+    public static final String MODE_MIRROR = "mirror";
+
+    private final String name;
+    private final List<String> members;
+    private final boolean mirror;
+    private final PrinterRegistry<?> registry;
+
+    public PrinterGroup(String name, List<String> members, boolean mirror, PrinterRegistry<?> registry) {
+        this.name = name;
+        this.members = new CopyOnWriteArrayList<String>(members);
+        this.mirror = mirror;
+        this.registry = registry;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<String> getMembers() {
+        return members;
+    }
+
+    public void submit(PrintJob job) {
+        if (mirror) {
+            submitMirrored(job);
+            return;
+        }
+        job.setGroup(this);
+        Printer target = pickMember(null);
+        if (target == null) {
+            job.fail("No Printer of group " + name + " is connected");
+            return;
+        }
+        target.submit(job);
+    }
+
+    /** Moves a job whose printer went away to another member. */
+    void failover(PrintJob job, Printer from) {
+        Printer target = pickMember(from);
+        if (target == null) {
+            job.fail("Printer is disconnected");
+            return;
+        }
+        PrintLog.d(TAG, "Moving job " + job.getJobId() + " of group " + name + " from " + from.getPrinterName() + " to "
+                + target.getPrinterName());
+        target.submit(job);
+    }
+
+    /**
+     * The connected member with the fewest queued jobs, preferring members whose
+     * cached status shows paper and no error.
+     */
+    private Printer pickMember(Printer exclude) {
+        Printer best = null;
+        boolean bestHealthy = false;
+        for (String member : members) {
+            Printer candidate = registry.getPrinter(member);
+            if (candidate == null || candidate == exclude || !candidate.isConnected()) {
+                continue;
+            }
+            boolean healthy = candidate.isHealthy();
+            if (best == null || (healthy && !bestHealthy)
+                    || (healthy == bestHealthy && candidate.getQueueDepth() < best.getQueueDepth())) {
+                best = candidate;
+                bestHealthy = healthy;
+            }
+        }
+        return best;
+    }
+
+    private void submitMirrored(final PrintJob job) {
+        List<Printer> targets = new ArrayList<Printer>();
+        for (String member : members) {
+            Printer candidate = registry.getPrinter(member);
+            if (candidate != null && candidate.isConnected()) {
+                targets.add(candidate);
+            }
+        }
+        if (targets.isEmpty()) {
+            job.fail("No Printer of group " + name + " is connected");
+            return;
+        }
+        job.queued();
+        MirrorResult result = new MirrorResult(job, targets.size());
+        for (Printer target : targets) {
+            target.submit(new MirrorPart(job, target.getPrinterName(), result));
+        }
+    }
+
+    private static class MirrorResult {
+
+        private final PrintJob job;
+        private final AtomicInteger remaining;
+        private final JSONArray results = new JSONArray();
+
+        MirrorResult(PrintJob job, int members) {
+            this.job = job;
+            this.remaining = new AtomicInteger(members);
+        }
+
+        void done(String printer_name, Object value, String error) {
+            synchronized (results) {
+                try {
+                    JSONObject entry = new JSONObject().put("printername", printer_name);
+                    if (error == null) {
+                        entry.put("status", "Printed").put("result", value);
+                    } else {
+                        entry.put("status", "Failed").put("error", error);
+                    }
+                    results.put(entry);
+                } catch (JSONException err) {
+                    PrintLog.e(TAG, "Exception in parsing to JSON object");
+                }
+            }
+            if (remaining.decrementAndGet() == 0) {
+                job.complete(results);
+            }
+        }
+    }
+
+    private static class MirrorPart extends PrintJob {
+
+        private final PrintJob job;
+        private final String printer_name;
+        private final MirrorResult result;
+
+        MirrorPart(PrintJob job, String printer_name, MirrorResult result) {
+            super(null, job.isPipelined());
+            this.job = job;
+            this.printer_name = printer_name;
+            this.result = result;
+        }
+
+        protected Object execute(Printer printer) throws Exception {
+            return job.execute(printer);
+        }
+
+        /** JS only knows the mirrored job's id, which cancels every part. */
+        @Override
+        boolean matches(int jobId) {
+            return super.matches(jobId) || job.getJobId() == jobId;
+        }
+
+        @Override
+        void complete(Object value) {
+            result.done(printer_name, value, null);
+        }
+
+        @Override
+        void fail(String message) {
+            result.done(printer_name, null, message);
+        }
+    }
+}
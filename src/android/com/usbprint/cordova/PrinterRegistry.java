@@ -0,0 +1,78 @@
+package com.usbprint.cordova;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Attached printer devices (UsbDevice in the plugin) and the {@link Printer}s
+ * connected through this plugin, both by printer name. The device index is
+ * seeded once and then kept up to date from the attach and detach broadcasts,
+ * so lookups by printer name are single map reads and never enumerate the USB
+ * bus.
+ */
+public class PrinterRegistry<D> {
+
+    private static final String TAG = "USBPrint";
+    private final ConcurrentHashMap<String, D> devices = new ConcurrentHashMap<String, D>();
+    private final ConcurrentHashMap<String, Printer> printers = new ConcurrentHashMap<String, Printer>();
+
+    /** Replaces the device index with the given devices, by printer name. */
+    public void reset(Map<String, D> attached) {
+        devices.clear();
+        for (Map.Entry<String, D> entry : attached.entrySet()) {
+            deviceAttached(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public void deviceAttached(String printer_name, D device) {
+        devices.put(printer_name, device);
+        PrintLog.d(TAG, "Printer attached: " + printer_name);
+    }
+
+    /**
+     * Drops the device from the index and returns the connected {@link Printer}
+     * for it, if any, which the caller has to close.
+     */
+    public Printer deviceDetached(String printer_name) {
+        if (devices.remove(printer_name) != null) {
+            PrintLog.d(TAG, "Printer detached: " + printer_name);
+        }
+        return printers.remove(printer_name);
+    }
+
+    public D getDevice(String printer_name) {
+        return devices.get(printer_name);
+    }
+
+    public Collection<D> getDevices() {
+        return devices.values();
+    }
+
+    public Printer getPrinter(String printer_name) {
+        return printers.get(printer_name);
+    }
+
+    public Collection<Printer> getPrinters() {
+        return printers.values();
+    }
+
+    /** Registers the printer unless one is already registered under its name, which is returned instead. */
+    public Printer addPrinter(Printer printer) {
+        Printer existing = printers.putIfAbsent(printer.getPrinterName(), printer);
+        return existing != null ? existing : printer;
+    }
+
+    /** Registers the printer and returns the one it replaced, if any. */
+    public Printer putPrinter(Printer printer) {
+        return printers.put(printer.getPrinterName(), printer);
+    }
+
+    public Printer removePrinter(String printer_name) {
+        return printers.remove(printer_name);
+    }
+
+    public void removePrinter(String printer_name, Printer printer) {
+        printers.remove(printer_name, printer);
+    }
+}
@@ -5,13 +5,14 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.hardware.usb.UsbManager;
 import android.hardware.usb.UsbConstants;
 import android.hardware.usb.UsbDevice;
 import android.os.Handler;
 import android.os.Message;
+import android.util.Base64;
 import android.util.Log;
-import android.widget.Toast;
 
 import com.usbprint.cordova.Printer;
 
@@ -24,13 +25,17 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class PrinterService extends CordovaPlugin {
 
@@ -38,42 +43,77 @@ public class PrinterService extends CordovaPlugin {
     protected static final String ACTION_USB_PERMISSION = "com.gokhana.connection.USB";
     public static final int USB_CONNECTED = 0;
     public static final int USB_DISCONNECTED = 1;
-    private static Map<String, Printer> printers = new HashMap<String, Printer>();
+    private static final String FLOW_PROFILES = "usbprint_flow";
+    private static final String LOGOS = "usbprint_logos";
+    private static final String PRINTERS = "usbprint_printers";
+    private static final String SPOOL_DIR = "usbprint-spool";
+    private static PrinterRegistry<UsbDevice> registry = new PrinterRegistry<UsbDevice>();
+    private static TemplateCache templates = new TemplateCache();
+    private static Map<String, PrinterGroup> groups = new ConcurrentHashMap<String, PrinterGroup>();
+    private static Map<Integer, StreamSession> streams = new ConcurrentHashMap<Integer, StreamSession>();
+    private static Map<String, PrintSpool> spools = new ConcurrentHashMap<String, PrintSpool>();
+    private static LogoCache logos = null;
+    private static SymbolEncoder symbols = new SymbolEncoder();
+    private static EventChannel events = new EventChannel();
     private UsbManager usbManager;
     private Context applicationContext;
 
     @Override
     protected void pluginInitialize() {
+        PrintLog.setSink(new PrintLog.Sink() {
+            public void d(String tag, String msg) {
+                Log.d(tag, msg);
+            }
+
+            public void e(String tag, String msg, Throwable tr) {
+                Log.e(tag, msg, tr);
+            }
+        });
         Log.d(TAG, "Initializing Printer Service");
         this.applicationContext = getApplicationContext();
         this.usbManager = ((UsbManager) this.applicationContext.getSystemService("usb"));
+        IntentFilter filter = new IntentFilter(UsbManager.ACTION_USB_DEVICE_ATTACHED);
+        filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
+        this.applicationContext.registerReceiver(this.hotplugReceiver, filter);
+        Map<String, UsbDevice> attached = new HashMap<String, UsbDevice>();
+        for (UsbDevice dev : this.usbManager.getDeviceList().values()) {
+            if (UsbPrinter.isPrinter(dev)) {
+                attached.put(UsbPrinter.nameOf(dev), dev);
+            }
+        }
+        registry.reset(attached);
+        loadFlowProfiles();
+        logos = new LogoCache(this.applicationContext.getSharedPreferences(LOGOS, Context.MODE_PRIVATE).getAll());
+        if (isWarmStart()) {
+            warmStart();
+        }
+        cordova.getThreadPool().execute(new Runnable() {
+            public void run() {
+                pruneSpools();
+            }
+        });
     }
 
     private final BroadcastReceiver mPermissionReceiver = new BroadcastReceiver() {
         public void onReceive(Context context, Intent intent) {
             getApplicationContext().unregisterReceiver(this);
             if ((intent.getAction().equals(ACTION_USB_PERMISSION))) {
-                synchronized (this) {
-                    UsbDevice dev = (UsbDevice) intent.getParcelableExtra("device");
-                    if (dev != null) {
-                        if (printers.size() > 0) {
-                            Log.d(TAG,
-                                    "This is first printer connected via this plugin, so registration for device detach.");
-                            registerForDetachBroadcast();
+                UsbDevice dev = (UsbDevice) intent.getParcelableExtra("device");
+                if (dev != null) {
+                    String printer_name = UsbPrinter.nameOf(dev);
+                    Printer p = registry.getPrinter(printer_name);
+                    if (intent.getBooleanExtra("permission", false)) {
+                        Log.d(TAG, "Got Permission for USB printer: " + printer_name);
+                        if (p != null) {
+                            p.setSpool(spoolFor(dev));
+                            p.changeStateToConnected();
+                            rememberPrinter(dev, true);
                         }
-                        String printer_name = constructPrinterName(dev);
-                        Printer p = printers.get(printer_name);
-                        if (intent.getBooleanExtra("permission", false)) {
-                            Log.d(TAG, "Got Permission for USB printer: " + printer_name);
-                            if (p != null) {
-                                p.changeStateToConnected();
-                            }
-                        } else {
-                            Log.d(TAG, "Permission denied for USB printer: " + printer_name);
-                            if (p != null) {
-                                p.close();
-                                printers.remove(printer_name);
-                            }
+                    } else {
+                        Log.d(TAG, "Permission denied for USB printer: " + printer_name);
+                        if (p != null) {
+                            p.close();
+                            registry.removePrinter(printer_name, p);
                         }
                     }
                 }
@@ -81,56 +121,83 @@ public class PrinterService extends CordovaPlugin {
         }
     };
 
-    private final BroadcastReceiver detachReceiver = new BroadcastReceiver() {
+    private final BroadcastReceiver hotplugReceiver = new BroadcastReceiver() {
         public void onReceive(Context context, Intent intent) {
-            if (intent.getAction().equals(UsbManager.ACTION_USB_DEVICE_DETACHED))
-                synchronized (this) {
-                    UsbDevice dev = (UsbDevice) intent.getParcelableExtra("device");
-                    if (dev != null) {
-                        String printer_name = constructPrinterName(dev);
-                        Toast.makeText(cordova.getActivity().getApplicationContext(),
-                                "Printer " + printer_name + " got disconnected", Toast.LENGTH_SHORT).show();
-                        Printer p = printers.get(printer_name);
-                        if (p != null) {
-                            p.close();
-                            printers.remove(printer_name);
-                        }
-                    }
-                    Log.d(TAG, "Registered printer via this plugin is empty, so stopping device registration.");
-                    if (printers.size() == 0) {
-                        applicationContext.unregisterReceiver(detachReceiver);
-                    }
+            UsbDevice dev = (UsbDevice) intent.getParcelableExtra("device");
+            if (dev == null) {
+                return;
+            }
+            if (!UsbPrinter.isPrinter(dev)) {
+                // Keyboards, hubs and the like are neither tracked nor reported.
+                return;
+            }
+            if (UsbManager.ACTION_USB_DEVICE_ATTACHED.equals(intent.getAction())) {
+                registry.deviceAttached(UsbPrinter.nameOf(dev), dev);
+                events.deviceEvent("attach", UsbPrinter.nameOf(dev));
+            } else if (UsbManager.ACTION_USB_DEVICE_DETACHED.equals(intent.getAction())) {
+                Printer p = registry.deviceDetached(UsbPrinter.nameOf(dev));
+                events.deviceEvent("detach", UsbPrinter.nameOf(dev));
+                if (p != null) {
+                    closeStreams(p);
+                    p.close();
+                    saveFlowProfiles();
                 }
+            }
         }
     };
 
-    private void registerForDetachBroadcast() {
-        IntentFilter filter = new IntentFilter(UsbManager.ACTION_USB_DEVICE_DETACHED);
-        applicationContext.registerReceiver(detachReceiver, filter);
-    }
-
     private Context getApplicationContext() {
         return cordova.getActivity().getApplicationContext();
     }
 
-    private String constructPrinterName(UsbDevice usbDevice) {
-        return usbDevice.getVendorId() + "_" + usbDevice.getDeviceId();
+    /** Restores the chunk size and pacing learned for each printer model in earlier sessions. */
+    private void loadFlowProfiles() {
+        SharedPreferences stored = this.applicationContext.getSharedPreferences(FLOW_PROFILES, Context.MODE_PRIVATE);
+        Map<String, String> profiles = new HashMap<String, String>();
+        for (Map.Entry<String, ?> entry : stored.getAll().entrySet()) {
+            if (entry.getValue() instanceof String) {
+                profiles.put(entry.getKey(), (String) entry.getValue());
+            }
+        }
+        FlowControl.loadProfiles(profiles);
+    }
+
+    private void saveFlowProfiles() {
+        SharedPreferences.Editor editor = this.applicationContext
+                .getSharedPreferences(FLOW_PROFILES, Context.MODE_PRIVATE).edit();
+        for (Map.Entry<String, String> entry : FlowControl.getProfiles().entrySet()) {
+            editor.putString(entry.getKey(), entry.getValue());
+        }
+        editor.apply();
+    }
+
+    /** Saves which logos are stored on which printer, after an upload. */
+    private void saveLogos() {
+        SharedPreferences.Editor editor = this.applicationContext.getSharedPreferences(LOGOS, Context.MODE_PRIVATE)
+                .edit().clear();
+        for (Map.Entry<String, String> entry : logos.getEntries().entrySet()) {
+            editor.putString(entry.getKey(), entry.getValue());
+        }
+        editor.apply();
     }
 
     @Override
     public void onDestroy() {
-        synchronized (this) {
-            this.printers.clear();
-            try {
-                this.applicationContext.unregisterReceiver(this.detachReceiver);
-            } catch (Exception exp) {
-                Log.e(TAG, "Issue while unregistering USB detach listener",exp);
-            }
-            try {
-                this.applicationContext.unregisterReceiver(this.mPermissionReceiver);
-            } catch (Exception exp) {
-                Log.e(TAG, "Issue while unregistering USB permission listener", exp);
-            }
+        for (Printer p : registry.getPrinters()) {
+            registry.removePrinter(p.getPrinterName(), p);
+            closeStreams(p);
+            p.close();
+        }
+        saveFlowProfiles();
+        try {
+            this.applicationContext.unregisterReceiver(this.hotplugReceiver);
+        } catch (Exception exp) {
+            Log.e(TAG, "Issue while unregistering USB attach/detach listener", exp);
+        }
+        try {
+            this.applicationContext.unregisterReceiver(this.mPermissionReceiver);
+        } catch (Exception exp) {
+            Log.e(TAG, "Issue while unregistering USB permission listener", exp);
         }
     }
 
@@ -151,18 +218,152 @@ public class PrinterService extends CordovaPlugin {
             String msg = args.getString(1);
             print(printer_name, msg, callbackContext);
             return true;
+        } else if (action.equals("printBatch")) {
+            String printer_name = args.getString(0);
+            JSONArray jobs = args.getJSONArray(1);
+            String[] msgs = new String[jobs.length()];
+            for (int i = 0; i < msgs.length; i++) {
+                msgs[i] = jobs.getString(i);
+            }
+            printBatch(printer_name, msgs, callbackContext);
+            return true;
+        } else if (action.equals("printImage")) {
+            String printer_name = args.getString(0);
+            String image = args.getString(1);
+            JSONObject options = args.optJSONObject(2);
+            int width = options != null ? options.optInt("width", ImageRasterizer.DEFAULT_DOT_WIDTH)
+                    : ImageRasterizer.DEFAULT_DOT_WIDTH;
+            boolean dither = options == null || options.optBoolean("dither", true);
+            printImage(printer_name, image, width, dither, callbackContext);
+            return true;
+        } else if (action.equals("printTable")) {
+            String printer_name = args.getString(0);
+            JSONArray columns = args.getJSONArray(1);
+            JSONArray rows = args.getJSONArray(2);
+            JSONObject options = args.optJSONObject(3);
+            printTable(printer_name, columns, rows, options, callbackContext);
+            return true;
+        } else if (action.equals("printQRCode")) {
+            String printer_name = args.getString(0);
+            String data = args.getString(1);
+            JSONObject options = args.optJSONObject(2);
+            printQRCode(printer_name, data, options != null ? options : new JSONObject(), callbackContext);
+            return true;
+        } else if (action.equals("printBarcode")) {
+            String printer_name = args.getString(0);
+            String data = args.getString(1);
+            JSONObject options = args.optJSONObject(2);
+            printBarcode(printer_name, data, options != null ? options : new JSONObject(), callbackContext);
+            return true;
+        } else if (action.equals("uploadLogo")) {
+            String printer_name = args.getString(0);
+            String key = args.getString(1);
+            String image = args.getString(2);
+            JSONObject options = args.optJSONObject(3);
+            int width = options != null ? options.optInt("width", ImageRasterizer.DEFAULT_DOT_WIDTH)
+                    : ImageRasterizer.DEFAULT_DOT_WIDTH;
+            boolean dither = options == null || options.optBoolean("dither", true);
+            uploadLogo(printer_name, key, image, width, dither, callbackContext);
+            return true;
+        } else if (action.equals("printLogo")) {
+            String printer_name = args.getString(0);
+            String key = args.getString(1);
+            printLogo(printer_name, key, callbackContext);
+            return true;
+        } else if (action.equals("createGroup")) {
+            String group_name = args.getString(0);
+            JSONArray members = args.getJSONArray(1);
+            String mode = args.optString(2);
+            createGroup(group_name, members, mode, callbackContext);
+            return true;
+        } else if (action.equals("removeGroup")) {
+            String group_name = args.getString(0);
+            removeGroup(group_name, callbackContext);
+            return true;
+        } else if (action.equals("registerTemplate")) {
+            String template_id = args.getString(0);
+            JSONArray layout = args.getJSONArray(1);
+            registerTemplate(template_id, layout, callbackContext);
+            return true;
+        } else if (action.equals("printTemplate")) {
+            String printer_name = args.getString(0);
+            String template_id = args.getString(1);
+            JSONObject data = args.optJSONObject(2);
+            printTemplate(printer_name, template_id, data, callbackContext);
+            return true;
+        } else if (action.equals("openStream")) {
+            String printer_name = args.getString(0);
+            openStream(printer_name, callbackContext);
+            return true;
+        } else if (action.equals("writeStream")) {
+            int stream_id = args.getInt(0);
+            byte[] chunk = args.getArrayBuffer(1);
+            writeStream(stream_id, chunk, callbackContext);
+            return true;
+        } else if (action.equals("closeStream")) {
+            int stream_id = args.getInt(0);
+            closeStream(stream_id, callbackContext);
+            return true;
         } else if (action.equals("sendCommand")) {
             String printer_name = args.getString(0);
             byte[] data = args.getArrayBuffer(1);
-            sendCommand(printer_name, data, callbackContext);
+            int priority = PrintJob.priorityOf(args.optString(2));
+            sendCommand(printer_name, data, priority, callbackContext);
+            return true;
+        } else if (action.equals("openCashBox")) {
+            String printer_name = args.getString(0);
+            openCashBox(printer_name, callbackContext);
+            return true;
+        } else if (action.equals("buzzer")) {
+            String printer_name = args.getString(0);
+            buzzer(printer_name, callbackContext);
+            return true;
+        } else if (action.equals("cancelJob")) {
+            int job_id = args.getInt(0);
+            cancelJob(job_id, callbackContext);
             return true;
         } else if (action.equals("isPaperAvailable")) {
             String printer_name = args.getString(0);
             isPaperAvailable(printer_name, callbackContext);
             return true;
+        } else if (action.equals("watchStatus")) {
+            String printer_name = args.getString(0);
+            long ttl = args.optLong(1, 0);
+            watchStatus(printer_name, ttl, callbackContext);
+            return true;
+        } else if (action.equals("startStatusReader")) {
+            String printer_name = args.getString(0);
+            boolean asb = args.optBoolean(1);
+            startStatusReader(printer_name, asb, callbackContext);
+            return true;
+        } else if (action.equals("stopStatusReader")) {
+            String printer_name = args.getString(0);
+            stopStatusReader(printer_name, callbackContext);
+            return true;
+        } else if (action.equals("getStats")) {
+            String printer_name = args.getString(0);
+            getStats(printer_name, callbackContext);
+            return true;
+        } else if (action.equals("watchStats")) {
+            String printer_name = args.getString(0);
+            long interval = args.optLong(1, 0);
+            watchStats(printer_name, interval, callbackContext);
+            return true;
+        } else if (action.equals("subscribe")) {
+            JSONArray types = args.optJSONArray(0);
+            JSONObject options = args.optJSONObject(1);
+            long interval = options != null ? options.optLong("interval", EventChannel.DEFAULT_INTERVAL_MS)
+                    : EventChannel.DEFAULT_INTERVAL_MS;
+            subscribe(types, interval, callbackContext);
+            return true;
+        } else if (action.equals("unsubscribe")) {
+            events.unsubscribe();
+            callbackContext.success("Unsubscribed");
+            return true;
         } else if (action.equals("cutPaper")) {
             String printer_name = args.getString(0);
-            cutPaper(printer_name, callbackContext);
+            int priority = PrintJob.priorityOf(args.optString(1));
+            cutPaper(printer_name, priority, callbackContext);
             return true;
         }
         return false;
@@ -170,16 +371,11 @@ public class PrinterService extends CordovaPlugin {
 
     private void getConnectedPrinters(final CallbackContext callbackContext) {
         JSONArray printers = new JSONArray();
-        JSONObject jsonObj = new JSONObject();
-        Log.d(TAG, String.format("Found: %s Devices ", usbManager.getDeviceList().size()));
-        List<UsbDevice> lstPrinters = new ArrayList(usbManager.getDeviceList().values());
-        for (UsbDevice usbDevice : lstPrinters) {
-            if (UsbConstants.USB_CLASS_PRINTER == usbDevice.getInterface(0).getInterfaceClass()) {
-                try {
-                    printers.put(this.injectDeviceInfo(usbDevice));
-                } catch (JSONException err) {
-                    Log.e(TAG, "Exception in parsing to JSON object");
-                }
+        for (UsbDevice usbDevice : registry.getDevices()) {
+            try {
+                printers.put(this.injectDeviceInfo(usbDevice));
+            } catch (JSONException err) {
+                Log.e(TAG, "Exception in parsing to JSON object");
             }
         }
         if (printers.length() <= 0) {
@@ -190,7 +386,7 @@ public class PrinterService extends CordovaPlugin {
 
     private JSONObject injectDeviceInfo(UsbDevice usbDevice) throws JSONException {
         JSONObject printerObj = new JSONObject()
-                .put("printername", usbDevice.getVendorId() + "_" + usbDevice.getDeviceId())
+                .put("printername", UsbPrinter.nameOf(usbDevice))
                 .put("deviceId", usbDevice.getDeviceId()).put("vendorId", usbDevice.getVendorId());
         // try {
         // printerObj.put("productName", usbDevice.getProductName());
@@ -211,7 +407,7 @@ public class PrinterService extends CordovaPlugin {
     }
 
     private void connect(String printer_name, final CallbackContext callbackContext) {
-        UsbDevice device = getDevice(printer_name);
+        UsbDevice device = registry.getDevice(printer_name);
         if (device != null) {
             Log.d(TAG, "Requesting permission for the device " + device.getDeviceId());
             getPermission(device, callbackContext);
@@ -221,12 +417,13 @@ public class PrinterService extends CordovaPlugin {
     }
 
     private void disconnect(String printer_name, final CallbackContext callbackContext) {
-        Printer device = printers.get(printer_name);
+        Printer device = registry.removePrinter(printer_name);
         if (device != null) {
+            closeStreams(device);
             device.close();
-            printers.remove(printer_name);
-            if (printers.size() == 0) {
-                applicationContext.unregisterReceiver(detachReceiver);
+            UsbDevice dev = registry.getDevice(printer_name);
+            if (dev != null) {
+                rememberPrinter(dev, false);
             }
             callbackContext.success("DisConnected");
         } else {
@@ -235,7 +432,7 @@ public class PrinterService extends CordovaPlugin {
     }
 
     private void isPaperAvailable(String printer_name, final CallbackContext callbackContext) {
-        Printer device = printers.get(printer_name);
+        Printer device = registry.getPrinter(printer_name);
         if (device != null) {
             callbackContext.success(String.valueOf(device.isPaperAvailable()));
         } else {
@@ -243,63 +440,407 @@ public class PrinterService extends CordovaPlugin {
         }
     }
 
-    private void cutPaper(String printer_name, final CallbackContext callbackContext) {
-        Printer device = printers.get(printer_name);
+    private void watchStatus(String printer_name, long ttl, final CallbackContext callbackContext) {
+        Printer device = registry.getPrinter(printer_name);
         if (device != null) {
-            device.cutPaper(0);
-            callbackContext.success("true");
+            device.watchStatus(new CordovaCallback(callbackContext), ttl);
         } else {
             callbackContext.error("No Printer of specified name is connected");
         }
     }
 
-    private void sendCommand(String printer_name, byte[] command, final CallbackContext callbackContext) {
-        Printer device = printers.get(printer_name);
+    private void startStatusReader(String printer_name, final boolean asb, final CallbackContext callbackContext) {
+        final Printer device = registry.getPrinter(printer_name);
         if (device != null) {
-            device.sendByte(command);
-            callbackContext.success("Send");
+            cordova.getThreadPool().execute(new Runnable() {
+                public void run() {
+                    try {
+                        device.startStatusReader(new CordovaCallback(callbackContext), asb);
+                    } catch (IOException exp) {
+                        Log.e(TAG, "Unable to start status reader", exp);
+                        callbackContext.error(exp.getMessage());
+                    }
+                }
+            });
         } else {
             callbackContext.error("No Printer of specified name is connected");
         }
     }
 
-    private void print(String printer_name, String msg, final CallbackContext callbackContext) {
-        Printer device = printers.get(printer_name);
+    private void stopStatusReader(String printer_name, final CallbackContext callbackContext) {
+        Printer device = registry.getPrinter(printer_name);
+        if (device != null) {
+            device.stopStatusReader();
+            callbackContext.success("Stopped");
+        } else {
+            callbackContext.error("No Printer of specified name is connected");
+        }
+    }
+
+    private void getStats(String printer_name, final CallbackContext callbackContext) throws JSONException {
+        Printer device = registry.getPrinter(printer_name);
+        if (device != null) {
+            callbackContext.success(device.getStatsJSON());
+        } else {
+            callbackContext.error("No Printer of specified name is connected");
+        }
+    }
+
+    private void watchStats(String printer_name, long interval, final CallbackContext callbackContext) {
+        Printer device = registry.getPrinter(printer_name);
+        if (device != null) {
+            device.watchStats(new CordovaCallback(callbackContext), interval);
+            if (interval <= 0) {
+                callbackContext.success("Stopped");
+            }
+        } else {
+            callbackContext.error("No Printer of specified name is connected");
+        }
+    }
+
+    private void subscribe(JSONArray types, long interval, final CallbackContext callbackContext) {
+        Set<String> wanted = new HashSet<String>();
+        if (types != null) {
+            for (int i = 0; i < types.length(); i++) {
+                wanted.add(types.optString(i));
+            }
+        }
+        events.subscribe(new CordovaCallback(callbackContext), wanted, interval);
+    }
+
+    private void cutPaper(String printer_name, int priority, final CallbackContext callbackContext) {
+        submit(printer_name, new PrintJob(new CordovaCallback(callbackContext)) {
+            protected Object execute(Printer printer) throws IOException {
+                printer.cutPaper(0);
+                return "true";
+            }
+        }.setPriority(priority), callbackContext);
+    }
+
+    private void sendCommand(String printer_name, final byte[] command, int priority,
+            final CallbackContext callbackContext) {
+        submit(printer_name, new PrintJob(new CordovaCallback(callbackContext)) {
+            protected Object execute(Printer printer) throws IOException {
+                printer.sendByte(command);
+                return "Send";
+            }
+        }.setPriority(priority), callbackContext);
+    }
+
+    private void openCashBox(String printer_name, final CallbackContext callbackContext) {
+        submit(printer_name, new PrintJob(new CordovaCallback(callbackContext)) {
+            protected Object execute(Printer printer) throws IOException {
+                printer.openCashBox();
+                return "Opened";
+            }
+        }.setPriority(PrintJob.PRIORITY_HIGH), callbackContext);
+    }
+
+    private void buzzer(String printer_name, final CallbackContext callbackContext) {
+        submit(printer_name, new PrintJob(new CordovaCallback(callbackContext)) {
+            protected Object execute(Printer printer) throws IOException {
+                printer.defaultBuzzer();
+                return "Beeped";
+            }
+        }.setPriority(PrintJob.PRIORITY_HIGH), callbackContext);
+    }
+
+    private void cancelJob(int job_id, final CallbackContext callbackContext) {
+        boolean cancelled = false;
+        for (Printer p : registry.getPrinters()) {
+            // A mirrored job has a part on every member of its group.
+            cancelled |= p.cancel(job_id);
+        }
+        if (cancelled) {
+            callbackContext.success("Cancelled");
+        } else {
+            callbackContext.error("No Job of specified id is queued or printing");
+        }
+    }
+
+    private void print(final String printer_name, final String msg, final CallbackContext callbackContext) {
+        submit(printer_name, new PrintJob(new CordovaCallback(callbackContext), true) {
+            protected Object execute(Printer printer) throws Exception {
+                if (!printer.isPaperAvailable()) {
+                    throw new Exception("Paper roll is empty");
+                }
+                printer.sendMsg(msg, "GBK");
+                return "Printed";
+            }
+        }, callbackContext);
+    }
+
+    private void printBatch(final String printer_name, final String[] msgs, final CallbackContext callbackContext) {
+        submit(printer_name, new PrintJob(new CordovaCallback(callbackContext)) {
+            protected Object execute(Printer printer) throws Exception {
+                if (!printer.isPaperAvailable()) {
+                    throw new Exception("Paper roll is empty");
+                }
+                int[] ends = new int[msgs.length];
+                int written;
+                String error = null;
+                try {
+                    written = printer.sendBatch(msgs, "GBK", ends);
+                } catch (TransferException exp) {
+                    written = exp.getBytesWritten();
+                    error = exp.getMessage();
+                }
+                JSONArray results = new JSONArray();
+                for (int i = 0; i < msgs.length; i++) {
+                    JSONObject result = new JSONObject().put("index", i);
+                    if (ends[i] <= written) {
+                        result.put("status", "Printed");
+                    } else {
+                        result.put("status", "Failed").put("error", error);
+                    }
+                    results.put(result);
+                }
+                return results;
+            }
+        }, callbackContext);
+    }
+
+    private void printImage(String printer_name, final String image, final int width, final boolean dither,
+            final CallbackContext callbackContext) {
+        submit(printer_name, new PrintJob(new CordovaCallback(callbackContext), true) {
+            protected Object execute(Printer printer) throws IOException {
+                int start = image.indexOf("base64,");
+                byte[] data = Base64.decode(start >= 0 ? image.substring(start + 7) : image, Base64.DEFAULT);
+                printer.sendRaster(BitmapRasterizer.rasterize(data, width, dither));
+                return "Printed";
+            }
+        }, callbackContext);
+    }
+
+    private void printTable(String printer_name, JSONArray columns, final JSONArray rows, JSONObject options,
+            final CallbackContext callbackContext) {
+        final TableLayout table;
+        try {
+            table = TableLayout.compile(columns, options);
+        } catch (JSONException err) {
+            callbackContext.error("Invalid table columns: " + err.getMessage());
+            return;
+        }
+        submit(printer_name, new PrintJob(new CordovaCallback(callbackContext), true) {
+            protected Object execute(Printer printer) throws Exception {
+                if (!printer.isPaperAvailable()) {
+                    throw new Exception("Paper roll is empty");
+                }
+                printer.sendTable(table, rows, "GBK");
+                return "Printed";
+            }
+        }, callbackContext);
+    }
+
+    private void printQRCode(String printer_name, final String data, JSONObject options,
+            final CallbackContext callbackContext) {
+        final int size = options.optInt("size", 6);
+        final String ecLevel = options.optString("ecLevel", "M");
+        final String align = options.optString("align", "center");
+        final boolean raster = options.optBoolean("raster", false);
+        final int width = options.optInt("width", ImageRasterizer.DEFAULT_DOT_WIDTH);
+        submit(printer_name, new PrintJob(new CordovaCallback(callbackContext), true) {
+            protected Object execute(Printer printer) throws IOException {
+                printer.sendBuffer(symbols.qrCode(data, size, ecLevel, align, raster, width));
+                return "Printed";
+            }
+        }, callbackContext);
+    }
+
+    private void printBarcode(String printer_name, final String data, JSONObject options,
+            final CallbackContext callbackContext) {
+        final String type = options.optString("type", "CODE128");
+        final int moduleWidth = options.optInt("moduleWidth", 2);
+        final int height = options.optInt("height", 80);
+        final String hri = options.optString("hri", "below");
+        final String align = options.optString("align", "center");
+        final boolean raster = options.optBoolean("raster", false);
+        final int width = options.optInt("width", ImageRasterizer.DEFAULT_DOT_WIDTH);
+        submit(printer_name, new PrintJob(new CordovaCallback(callbackContext), true) {
+            protected Object execute(Printer printer) throws IOException {
+                printer.sendBuffer(symbols.barcode(type, data, moduleWidth, height, hri, align, raster, width));
+                return "Printed";
+            }
+        }, callbackContext);
+    }
+
+    private void uploadLogo(String printer_name, final String key, final String image, final int width,
+            final boolean dither, final CallbackContext callbackContext) {
+        submit(printer_name, new PrintJob(new CordovaCallback(callbackContext)) {
+            protected Object execute(Printer printer) throws IOException {
+                int start = image.indexOf("base64,");
+                byte[] data = Base64.decode(start >= 0 ? image.substring(start + 7) : image, Base64.DEFAULT);
+                String hash = LogoCache.hashOf(data, width, dither);
+                if (logos.isStored(printer.getIdentity(), key, hash)) {
+                    return "Cached";
+                }
+                logos.upload(printer, key, hash, BitmapRasterizer.rasterize(data, width, dither));
+                saveLogos();
+                return "Uploaded";
+            }
+        }, callbackContext);
+    }
+
+    private void printLogo(String printer_name, final String key, final CallbackContext callbackContext) {
+        submit(printer_name, new PrintJob(new CordovaCallback(callbackContext), true) {
+            protected Object execute(Printer printer) throws Exception {
+                byte[] command = logos.printCommand(printer.getIdentity(), key);
+                if (command == null) {
+                    throw new Exception("No Logo of specified key is uploaded to the printer");
+                }
+                printer.sendByte(command);
+                return "Printed";
+            }
+        }, callbackContext);
+    }
+
+    private void createGroup(String group_name, JSONArray members, String mode, final CallbackContext callbackContext)
+            throws JSONException {
+        if (registry.getPrinter(group_name) != null || registry.getDevice(group_name) != null) {
+            callbackContext.error("Group name is already used by a printer");
+            return;
+        }
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < members.length(); i++) {
+            names.add(members.getString(i));
+        }
+        boolean mirror = PrinterGroup.MODE_MIRROR.equals(mode);
+        groups.put(group_name, new PrinterGroup(group_name, names, mirror, registry));
+        callbackContext.success("Created");
+    }
+
+    private void removeGroup(String group_name, final CallbackContext callbackContext) {
+        if (groups.remove(group_name) != null) {
+            callbackContext.success("Removed");
+        } else {
+            callbackContext.error("No Group of specified name exists");
+        }
+    }
+
+    private void registerTemplate(String template_id, JSONArray layout, final CallbackContext callbackContext) {
+        try {
+            templates.put(template_id, ReceiptTemplate.compile(layout, "GBK"));
+            callbackContext.success("Registered");
+        } catch (JSONException err) {
+            Log.e(TAG, "Invalid layout for template " + template_id, err);
+            callbackContext.error("Invalid template layout: " + err.getMessage());
+        }
+    }
+
+    private void printTemplate(final String printer_name, String template_id, final JSONObject data,
+            final CallbackContext callbackContext) {
+        final ReceiptTemplate template = templates.get(template_id);
+        if (template == null) {
+            callbackContext.error("No Template of specified id is registered");
+            return;
+        }
+        submit(printer_name, new PrintJob(new CordovaCallback(callbackContext), true) {
+            protected Object execute(Printer printer) throws Exception {
+                if (!printer.isPaperAvailable()) {
+                    throw new Exception("Paper roll is empty");
+                }
+                printer.sendTemplate(template, data, logos);
+                return "Printed";
+            }
+        }, callbackContext);
+    }
+
+    private void openStream(String printer_name, final CallbackContext callbackContext) {
+        Printer device = registry.getPrinter(printer_name);
         if (device != null) {
-            if (device.isPaperAvailable()) {
-                device.sendMsg(msg, "GBK");
-                callbackContext.success("Printed");
-            } else {
-                Toast.makeText(cordova.getActivity().getApplicationContext(), "Paper roll is empty in printer "
-                        + printer_name + ". Please place some paper before printing any data.", Toast.LENGTH_SHORT)
-                        .show();
-                callbackContext.error("Paper roll is empty");
+            StreamSession session = new StreamSession(device, new CordovaCallback(callbackContext));
+            streams.put(session.getStreamId(), session);
+            session.opened();
+        } else {
+            callbackContext.error("No Printer of specified name is connected");
+        }
+    }
+
+    private void writeStream(int stream_id, byte[] chunk, final CallbackContext callbackContext) {
+        StreamSession session = streams.get(stream_id);
+        if (session == null) {
+            callbackContext.error("No Stream of specified id is open");
+            return;
+        }
+        try {
+            long pending = session.write(chunk);
+            callbackContext.success(new JSONObject().put("pendingBytes", pending)
+                    .put("ready", pending < StreamSession.HIGH_WATERMARK));
+        } catch (IOException exp) {
+            callbackContext.error(exp.getMessage());
+        } catch (JSONException err) {
+            Log.e(TAG, "Exception in parsing to JSON object");
+        }
+    }
+
+    /** Drops the stream sessions of the printer, failing them as disconnected. */
+    private void closeStreams(Printer printer) {
+        Iterator<StreamSession> it = streams.values().iterator();
+        while (it.hasNext()) {
+            StreamSession session = it.next();
+            if (session.getPrinter() == printer) {
+                it.remove();
+                session.disconnected();
             }
+        }
+    }
+
+    private void closeStream(int stream_id, final CallbackContext callbackContext) {
+        StreamSession session = streams.remove(stream_id);
+        if (session != null) {
+            session.close(new CordovaCallback(callbackContext));
+        } else {
+            callbackContext.error("No Stream of specified id is open");
+        }
+    }
+
+    /**
+     * Queues the job on the named printer, or on a member of the group with that
+     * name, failing the callback when neither is known.
+     */
+    private void submit(String printer_name, PrintJob job, final CallbackContext callbackContext) {
+        Printer device = registry.getPrinter(printer_name);
+        if (device != null) {
+            device.submit(job);
+            return;
+        }
+        PrinterGroup group = groups.get(printer_name);
+        if (group != null) {
+            group.submit(job);
         } else {
             callbackContext.error("No Printer of specified name is connected");
         }
     }
 
-    private synchronized void getPermission(UsbDevice dev, final CallbackContext callbackContext) {
+    private void getPermission(UsbDevice dev, final CallbackContext callbackContext) {
         if (dev == null) {
             callbackContext.error("No Printer of specified name is connected");
             return;
         }
-        String printer_name = this.constructPrinterName(dev);
+        String printer_name = UsbPrinter.nameOf(dev);
         if (!usbManager.hasPermission(dev)) {
-            Printer p = new Printer(this.usbManager, dev, printer_name, callbackContext);
-            this.printers.put(printer_name, p);
+            Printer p = new UsbPrinter(this.usbManager, dev, printer_name, new CordovaCallback(callbackContext));
+            p.setEvents(events);
+            registry.putPrinter(p);
             PendingIntent pi = PendingIntent.getBroadcast(this.applicationContext, 0, new Intent(ACTION_USB_PERMISSION),
                     0);
             this.applicationContext.registerReceiver(this.mPermissionReceiver, new IntentFilter(ACTION_USB_PERMISSION));
             this.usbManager.requestPermission(dev, pi);
         } else {
-            Printer p = this.printers.get(printer_name);
-            if (p == null) {
-                p = new Printer(this.usbManager, dev, printer_name, callbackContext);
-                p.changeStateToConnected();
-                this.printers.put(printer_name, p);
-            } else {
+            Printer existing = registry.getPrinter(printer_name);
+            if (existing == null) {
+                Printer p = new UsbPrinter(this.usbManager, dev, printer_name, new CordovaCallback(callbackContext));
+                p.setEvents(events);
+                existing = registry.addPrinter(p);
+                if (existing == p) {
+                    p.setSpool(spoolFor(dev));
+                    p.changeStateToConnected();
+                    rememberPrinter(dev, true);
+                    return;
+                }
+            }
+            // A warm-started printer has no connect callback yet, so it takes this one.
+            if (!existing.adoptCallback(new CordovaCallback(callbackContext))) {
                 Log.d(TAG, String.format("Already got permission for %s Device, so returning 'Connected' status.",
                         printer_name));
                 callbackContext.success("Connected");
@@ -307,19 +848,116 @@ public class PrinterService extends CordovaPlugin {
         }
     }
 
-    private UsbDevice getDevice(String printer_name) {
-        Log.d(TAG, String.format("Found: %s Devices ", usbManager.getDeviceList().size()));
-        String[] parts = printer_name.split("_");
-        if (parts.length == 2) {
-            List<UsbDevice> lstPrinters = new ArrayList(usbManager.getDeviceList().values());
-            for (UsbDevice usbDevice : lstPrinters) {
-                if (usbDevice.getVendorId() == Integer.valueOf(parts[0])
-                        && usbDevice.getDeviceId() == Integer.parseInt(parts[1])) {
-                    return usbDevice;
+    /**
+     * Warm start is turned on with the UsbPrintWarmStart preference. Printers are
+     * then remembered by vendor/product/serial while connected, and forgotten when
+     * disconnected from JS.
+     */
+    private boolean isWarmStart() {
+        return preferences.getBoolean("UsbPrintWarmStart", false);
+    }
+
+    private void rememberPrinter(UsbDevice dev, boolean connected) {
+        if (!isWarmStart()) {
+            return;
+        }
+        SharedPreferences.Editor editor = this.applicationContext
+                .getSharedPreferences(PRINTERS, Context.MODE_PRIVATE).edit();
+        if (connected) {
+            editor.putString(UsbPrinter.identityOf(dev), UsbPrinter.nameOf(dev));
+        } else {
+            editor.remove(UsbPrinter.identityOf(dev));
+        }
+        editor.apply();
+    }
+
+    /**
+     * Connects, on a background thread, the remembered printers which are plugged
+     * in and still have USB permission, and warms them up, so the first job after
+     * app start prints as fast as the next ones. connect on such a printer answers
+     * "Connected" right away and keeps its callback for the disconnect error.
+     */
+    private void warmStart() {
+        final SharedPreferences known = this.applicationContext.getSharedPreferences(PRINTERS, Context.MODE_PRIVATE);
+        cordova.getThreadPool().execute(new Runnable() {
+            public void run() {
+                for (UsbDevice dev : registry.getDevices()) {
+                    if (!usbManager.hasPermission(dev) || !known.contains(UsbPrinter.identityOf(dev))) {
+                        continue;
+                    }
+                    String printer_name = UsbPrinter.nameOf(dev);
+                    Printer p = new UsbPrinter(usbManager, dev, printer_name, null);
+                    p.setEvents(events);
+                    if (registry.addPrinter(p) != p) {
+                        continue;
+                    }
+                    p.setSpool(spoolFor(dev));
+                    p.changeStateToConnected();
+                    try {
+                        p.warmUp("GBK");
+                        Log.d(TAG, "Warmed up printer " + printer_name);
+                    } catch (IOException exp) {
+                        Log.e(TAG, "Unable to warm up printer " + printer_name, exp);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Opens the journal spool of the printer, kept per vendor/product/serial so it
+     * is found again after the printer is replugged or the app restarts. The size
+     * is set with the UsbPrintSpoolSize preference in KB, 0 turns spooling off.
+     */
+    private synchronized PrintSpool spoolFor(UsbDevice dev) {
+        int size = preferences.getInteger("UsbPrintSpoolSize", 1024);
+        if (size <= 0) {
+            return null;
+        }
+        String identity = UsbPrinter.identityOf(dev);
+        PrintSpool spool = spools.get(identity);
+        if (spool == null) {
+            File dir = new File(this.applicationContext.getFilesDir(), SPOOL_DIR);
+            try {
+                if (!dir.isDirectory() && !dir.mkdirs()) {
+                    throw new IOException("Unable to create " + dir);
+                }
+                spool = new PrintSpool(new File(dir, PrintSpool.fileNameOf(identity)), size * 1024);
+            } catch (IOException exp) {
+                Log.e(TAG, "Unable to open print spool for " + identity, exp);
+                return null;
+            }
+            spools.put(identity, spool);
+        }
+        return spool;
+    }
+
+    /**
+     * Deletes the journals of printers not connected in this session which have
+     * nothing left to print. Printers without a serial number get a new journal
+     * each time they are replugged, so theirs would otherwise pile up.
+     */
+    private synchronized void pruneSpools() {
+        File[] files = new File(this.applicationContext.getFilesDir(), SPOOL_DIR).listFiles();
+        if (files == null) {
+            return;
+        }
+        Set<String> open = new HashSet<String>();
+        for (String identity : spools.keySet()) {
+            open.add(PrintSpool.fileNameOf(identity));
+        }
+        for (File file : files) {
+            if (!file.getName().endsWith(".spool") || open.contains(file.getName())) {
+                continue;
+            }
+            try {
+                if (!new PrintSpool(file, (int) file.length()).hasPending() && file.delete()) {
+                    Log.d(TAG, "Deleted printed spool " + file.getName());
                 }
+            } catch (IOException exp) {
+                Log.e(TAG, "Unable to check print spool " + file.getName(), exp);
             }
         }
-        return null;
     }
 
     private String translateDeviceClass(int deviceClass) {
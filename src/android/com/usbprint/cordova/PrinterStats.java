@@ -0,0 +1,70 @@
+package com.usbprint.cordova;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Counters and latency histograms for one printer. All recording methods are
+ * lock-free and allocation-free so they can sit on the send path.
+ */
+public class PrinterStats {
+
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong transfers = new AtomicLong();
+    private final AtomicLong jobsSent = new AtomicLong();
+    private final AtomicLong jobsFailed = new AtomicLong();
+    private final AtomicLong shortWrites = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong maxQueueDepth = new AtomicLong();
+    private final LatencyHistogram transferLatency = new LatencyHistogram();
+    private final LatencyHistogram statusLatency = new LatencyHistogram();
+    private final LatencyHistogram jobLatency = new LatencyHistogram();
+    private final long startedAt = System.nanoTime();
+
+    public void transferDone(int bytes, long nanos) {
+        bytesSent.addAndGet(bytes);
+        transfers.incrementAndGet();
+        transferLatency.recordNanos(nanos);
+    }
+
+    public void shortWrite() {
+        shortWrites.incrementAndGet();
+    }
+
+    public void timeout() {
+        timeouts.incrementAndGet();
+    }
+
+    public void statusChecked(long nanos) {
+        statusLatency.recordNanos(nanos);
+    }
+
+    public void jobDone(boolean success, long nanos) {
+        if (success) {
+            jobsSent.incrementAndGet();
+        } else {
+            jobsFailed.incrementAndGet();
+        }
+        jobLatency.recordNanos(nanos);
+    }
+
+    public void queued(int depth) {
+        long current = maxQueueDepth.get();
+        while (depth > current && !maxQueueDepth.compareAndSet(current, depth)) {
+            current = maxQueueDepth.get();
+        }
+    }
+
+    public JSONObject toJSON(int queueDepth) throws JSONException {
+        long elapsedMs = Math.max((System.nanoTime() - startedAt) / 1000000, 1);
+        return new JSONObject().put("bytesSent", bytesSent.get()).put("transfers", transfers.get())
+                .put("jobsSent", jobsSent.get()).put("jobsFailed", jobsFailed.get())
+                .put("shortWrites", shortWrites.get()).put("timeouts", timeouts.get())
+                .put("queueDepth", queueDepth).put("maxQueueDepth", maxQueueDepth.get())
+                .put("bytesPerSecond", bytesSent.get() * 1000 / elapsedMs)
+                .put("transferLatency", transferLatency.toJSON()).put("statusLatency", statusLatency.toJSON())
+                .put("jobLatency", jobLatency.toJSON());
+    }
+}
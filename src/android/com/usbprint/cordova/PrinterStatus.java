@@ -0,0 +1,94 @@
+package com.usbprint.cordova;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Snapshot of a printer's state. Instances are immutable and carry the time
+ * they were read so callers can decide whether they are still fresh.
+ */
+public class PrinterStatus {
+
+    private static final int PORT_PAPER_EMPTY = 0x20;
+    private static final int PORT_SELECTED = 0x10;
+    private static final int PORT_NOT_ERROR = 0x08;
+
+    private final boolean online;
+    private final boolean paperOut;
+    private final boolean paperNearEnd;
+    private final boolean coverOpen;
+    private final boolean drawerOpen;
+    private final boolean cutterError;
+    private final boolean error;
+    private final long updatedAt;
+
+    public PrinterStatus(boolean online, boolean paperOut, boolean paperNearEnd, boolean coverOpen,
+            boolean drawerOpen, boolean cutterError, boolean error) {
+        this.online = online;
+        this.paperOut = paperOut;
+        this.paperNearEnd = paperNearEnd;
+        this.coverOpen = coverOpen;
+        this.drawerOpen = drawerOpen;
+        this.cutterError = cutterError;
+        this.error = error;
+        this.updatedAt = TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * Decodes the byte returned by the USB printer class GET_PORT_STATUS request,
+     * or -1 when the request failed.
+     */
+    public static PrinterStatus fromPortStatus(int portStatus) {
+        if (portStatus < 0) {
+            return new PrinterStatus(false, false, false, false, false, false, true);
+        }
+        return new PrinterStatus((portStatus & PORT_SELECTED) != 0, (portStatus & PORT_PAPER_EMPTY) != 0, false,
+                false, false, false, (portStatus & PORT_NOT_ERROR) == 0);
+    }
+
+    public boolean isOnline() {
+        return online;
+    }
+
+    public boolean isPaperOut() {
+        return paperOut;
+    }
+
+    public boolean isPaperNearEnd() {
+        return paperNearEnd;
+    }
+
+    public boolean isCoverOpen() {
+        return coverOpen;
+    }
+
+    public boolean isDrawerOpen() {
+        return drawerOpen;
+    }
+
+    public boolean isCutterError() {
+        return cutterError;
+    }
+
+    public boolean isError() {
+        return error;
+    }
+
+    public long getAge() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime()) - updatedAt;
+    }
+
+    public boolean sameState(PrinterStatus other) {
+        return other != null && online == other.online && paperOut == other.paperOut
+                && paperNearEnd == other.paperNearEnd && coverOpen == other.coverOpen
+                && drawerOpen == other.drawerOpen && cutterError == other.cutterError && error == other.error;
+    }
+
+    public JSONObject toJSON() throws JSONException {
+        return new JSONObject().put("online", online).put("paperOut", paperOut).put("paperNearEnd", paperNearEnd)
+                .put("coverOpen", coverOpen).put("drawerOpen", drawerOpen).put("cutterError", cutterError)
+                .put("error", error);
+    }
+}
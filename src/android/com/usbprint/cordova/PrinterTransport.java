@@ -0,0 +1,26 @@
+package com.usbprint.cordova;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Byte pipe between a {@link Printer} and the device. Besides USB there are an
+ * in-memory loopback and a file/pipe sink, so the encoding and send paths can be
+ * exercised without a printer attached.
+ */
+public interface PrinterTransport {
+
+    /** Writes the remaining bytes of the buffer and returns the number of bytes written. */
+    int write(ByteBuffer data) throws IOException;
+
+    /**
+     * Reads at most length bytes sent back by the printer, waiting up to
+     * timeoutMs, and returns the number of bytes read or -1 when nothing arrived.
+     */
+    int read(byte[] buffer, int length, int timeoutMs) throws IOException;
+
+    /** Whether the transport can read replies from the printer. */
+    boolean canRead();
+
+    void close();
+}
@@ -0,0 +1,192 @@
+package com.usbprint.cordova;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A receipt layout compiled to a byte program. Everything that does not depend on
+ * the data (styles, static text, separators, feeds and cuts) is encoded once at
+ * compile time, so printing only has to encode the {{field}} values.
+ *
+ * The layout is an array of elements:
+ * {type: "text", text: "Order {{orderNo}}", align: "left|center|right", bold: true, size: 1-8},
+ * {type: "separator", char: "-", width: 32}, {type: "feed", lines: 2}, {type: "cut", partial: false}
+ * and {type: "logo", key: "store", align: "center"} for a logo uploaded to the printer's NV memory.
+ */
+public class ReceiptTemplate {
+
+    private static final int DEFAULT_WIDTH = 32;
+    private final String charset;
+    private final byte[][] chunks;
+    private final String[] fields;
+    private final String[] logos;
+
+    private ReceiptTemplate(String charset, byte[][] chunks, String[] fields, String[] logos) {
+        this.charset = charset;
+        this.chunks = chunks;
+        this.fields = fields;
+        this.logos = logos;
+    }
+
+    public String getCharset() {
+        return charset;
+    }
+
+    /**
+     * Fills in the fields from data and returns the encoder's buffer ready to be
+     * sent. Missing fields print as empty text.
+     */
+    public ByteBuffer render(JSONObject data, TextEncoder encoder) {
+        return render(data, encoder, null, null);
+    }
+
+    /**
+     * Like {@link #render(JSONObject, TextEncoder)}, printing logo elements with
+     * the NV graphics the logo cache knows for the printer identity. Logos not
+     * uploaded to that printer are left out.
+     */
+    public ByteBuffer render(JSONObject data, TextEncoder encoder, LogoCache logoCache, String identity) {
+        encoder.begin();
+        for (int i = 0; i < chunks.length; i++) {
+            if (logos[i] != null) {
+                byte[] command = logoCache != null ? logoCache.printCommand(identity, logos[i]) : null;
+                if (command != null) {
+                    encoder.append(command);
+                }
+            } else if (fields[i] == null) {
+                encoder.append(chunks[i]);
+            } else {
+                String value = data != null ? data.optString(fields[i], "") : "";
+                encoder.append(value).restoreCodePage();
+            }
+        }
+        return encoder.finish();
+    }
+
+    public static ReceiptTemplate compile(JSONArray layout, String charset) throws JSONException {
+        Compiler compiler = new Compiler(charset);
+        for (int i = 0; i < layout.length(); i++) {
+            JSONObject element = layout.getJSONObject(i);
+            String type = element.optString("type", "text");
+            if (type.equals("text")) {
+                compiler.text(element);
+            } else if (type.equals("separator")) {
+                compiler.separator(element);
+            } else if (type.equals("feed")) {
+                compiler.bytes(new byte[] { 27, 100, (byte) element.optInt("lines", 1) });
+            } else if (type.equals("logo")) {
+                compiler.logo(element);
+            } else if (type.equals("cut")) {
+                compiler.bytes(new byte[] { 29, 86, (byte) (element.optBoolean("partial", false) ? 66 : 65), 0 });
+            } else {
+                throw new JSONException("Unknown template element type: " + type);
+            }
+        }
+        return compiler.build();
+    }
+
+    private static class Compiler {
+
+        private final String charset;
+        private final TextEncoder encoder;
+        private final List<byte[]> chunks = new ArrayList<byte[]>();
+        private final List<String> fields = new ArrayList<String>();
+        private final List<String> logos = new ArrayList<String>();
+
+        Compiler(String charset) {
+            this.charset = charset;
+            this.encoder = new TextEncoder(charset).begin();
+        }
+
+        void text(JSONObject element) {
+            String align = element.optString("align", "left");
+            int size = Math.max(1, Math.min(8, element.optInt("size", 1))) - 1;
+            boolean bold = element.optBoolean("bold", false);
+            encoder.append(new byte[] { 27, 97, (byte) (align.equals("center") ? 1 : align.equals("right") ? 2 : 0) });
+            if (bold) {
+                encoder.append(new byte[] { 27, 69, 1 });
+            }
+            if (size > 0) {
+                encoder.append(new byte[] { 29, 33, (byte) ((size << 4) | size) });
+            }
+            String text = element.optString("text", "");
+            int pos = 0;
+            while (pos < text.length()) {
+                int open = text.indexOf("{{", pos);
+                int close = open < 0 ? -1 : text.indexOf("}}", open + 2);
+                if (close < 0) {
+                    encoder.append(text, pos, text.length());
+                    break;
+                }
+                encoder.append(text, pos, open);
+                field(text.substring(open + 2, close).trim());
+                pos = close + 2;
+            }
+            encoder.restoreCodePage().append((byte) 13).append((byte) 10);
+            if (size > 0) {
+                encoder.append(new byte[] { 29, 33, 0 });
+            }
+            if (bold) {
+                encoder.append(new byte[] { 27, 69, 0 });
+            }
+            encoder.append(new byte[] { 27, 97, 0 });
+        }
+
+        void separator(JSONObject element) {
+            String c = element.optString("char", "-");
+            int width = element.optInt("width", DEFAULT_WIDTH);
+            StringBuilder line = new StringBuilder(width);
+            for (int i = 0; i < width; i++) {
+                line.append(c.length() > 0 ? c.charAt(0) : '-');
+            }
+            encoder.append(line).restoreCodePage().append((byte) 13).append((byte) 10);
+        }
+
+        void bytes(byte[] bytes) {
+            encoder.append(bytes);
+        }
+
+        void logo(JSONObject element) throws JSONException {
+            String align = element.optString("align", "center");
+            encoder.append(new byte[] { 27, 97, (byte) (align.equals("center") ? 1 : align.equals("right") ? 2 : 0) });
+            flush();
+            chunks.add(null);
+            fields.add(null);
+            logos.add(element.getString("key"));
+            encoder.append(new byte[] { 27, 97, 0 });
+        }
+
+        private void field(String name) {
+            flush();
+            chunks.add(null);
+            fields.add(name);
+            logos.add(null);
+        }
+
+        private void flush() {
+            encoder.restoreCodePage();
+            ByteBuffer out = encoder.buffer();
+            if (out.position() == 0) {
+                return;
+            }
+            out.flip();
+            byte[] chunk = new byte[out.remaining()];
+            out.get(chunk);
+            chunks.add(chunk);
+            fields.add(null);
+            logos.add(null);
+            encoder.begin();
+        }
+
+        ReceiptTemplate build() {
+            flush();
+            return new ReceiptTemplate(charset, chunks.toArray(new byte[chunks.size()][]),
+                    fields.toArray(new String[fields.size()]), logos.toArray(new String[logos.size()]));
+        }
+    }
+}
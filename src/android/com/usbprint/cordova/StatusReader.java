@@ -0,0 +1,151 @@
+package com.usbprint.cordova;
+
+import java.io.IOException;
+
+/**
+ * Reads the printer's bulk IN endpoint on its own thread and turns the replies
+ * into {@link PrinterStatus} updates. With Automatic Status Back (GS a) enabled
+ * the printer reports every change by itself; otherwise the reader asks for the
+ * four real-time status bytes (DLE EOT 1-4) at the given interval. Commands go
+ * straight to the transport, bypassing the spool and the job stats: DLE EOT at
+ * any time, and GS a, which is not a real-time command, from a job on the
+ * printer's I/O thread so it never lands inside another job's data.
+ */
+public class StatusReader implements Runnable {
+
+    private static final String TAG = "USBPrint";
+    private static final int READ_TIMEOUT_MS = 200;
+    private static final byte[] ENABLE_ASB = new byte[] { 29, 97, 15 };
+    private static final byte[] DISABLE_ASB = new byte[] { 29, 97, 0 };
+    private static final byte[][] QUERIES = new byte[][] { { 16, 4, 1 }, { 16, 4, 2 }, { 16, 4, 3 }, { 16, 4, 4 } };
+
+    private final Printer printer;
+    private final PrinterTransport transport;
+    private final boolean asb;
+    private final long intervalMs;
+    private final byte[] buffer;
+    private final int[] block = new int[4];
+    private final int[] replies = new int[4];
+    private int blockLength = 0;
+    private volatile boolean running = true;
+    private Thread thread;
+
+    public StatusReader(Printer printer, PrinterTransport transport, boolean asb, long intervalMs) {
+        this.printer = printer;
+        this.transport = transport;
+        this.asb = asb;
+        this.intervalMs = intervalMs;
+        this.buffer = new byte[512];
+    }
+
+    public void start() {
+        if (asb) {
+            sendCommand(ENABLE_ASB);
+        }
+        thread = new Thread(this, "USBPrint-status-" + printer.getPrinterName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+        if (asb && !printer.isClosed()) {
+            sendCommand(DISABLE_ASB);
+        }
+    }
+
+    /** Queues the command behind the jobs already queued, once nothing is being transferred. */
+    private void sendCommand(final byte[] command) {
+        printer.submit(new PrintJob(null) {
+            protected Object execute(Printer p) throws IOException {
+                p.sendRealtime(command);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (asb) {
+                while (running) {
+                    int n = transport.read(buffer, buffer.length, READ_TIMEOUT_MS);
+                    for (int i = 0; i < n; i++) {
+                        onAsbByte(buffer[i] & 0xff);
+                    }
+                }
+            } else {
+                while (running) {
+                    if (queryRound()) {
+                        printer.publishStatus(fromRealtime(replies[0], replies[1], replies[2], replies[3]));
+                    }
+                    Thread.sleep(intervalMs);
+                }
+            }
+        } catch (InterruptedException exp) {
+            Thread.currentThread().interrupt();
+        } catch (Exception exp) {
+            PrintLog.e(TAG, "Status reader stopped for printer " + printer.getPrinterName(), exp);
+        }
+    }
+
+    /**
+     * Sends the four queries and reads their replies. Replies which arrived too
+     * late for an earlier round are drained first, and the round is dropped as
+     * soon as one reply is missing, so a late reply is never taken for the answer
+     * to the next query.
+     */
+    private boolean queryRound() throws IOException {
+        while (transport.read(buffer, buffer.length, 1) > 0) {
+            // Stale replies.
+        }
+        for (int n = 0; n < QUERIES.length; n++) {
+            if (!running) {
+                return false;
+            }
+            printer.sendRealtime(QUERIES[n]);
+            if (transport.read(buffer, 1, READ_TIMEOUT_MS) <= 0) {
+                return false;
+            }
+            replies[n] = buffer[0] & 0xff;
+        }
+        return running;
+    }
+
+    /** Collects the 4-byte ASB blocks; a block always starts with a byte matching 0xx1xx00. */
+    private void onAsbByte(int b) {
+        if (blockLength == 0 && (b & 0x93) != 0x10) {
+            return;
+        }
+        block[blockLength++] = b;
+        if (blockLength == block.length) {
+            blockLength = 0;
+            printer.publishStatus(fromAsb(block[0], block[1], block[2]));
+        }
+    }
+
+    static PrinterStatus fromAsb(int first, int second, int third) {
+        boolean drawer = (first & 0x04) != 0;
+        boolean offline = (first & 0x08) != 0;
+        boolean coverOpen = (first & 0x20) != 0;
+        boolean cutterError = (second & 0x08) != 0;
+        boolean error = (second & 0x64) != 0;
+        boolean nearEnd = (third & 0x03) != 0;
+        boolean paperOut = (third & 0x0c) != 0;
+        return new PrinterStatus(!offline, paperOut, nearEnd, coverOpen, drawer, cutterError, error || cutterError);
+    }
+
+    static PrinterStatus fromRealtime(int printerStatus, int offlineCause, int errorCause, int paperStatus) {
+        boolean drawer = (printerStatus & 0x04) != 0;
+        boolean offline = (printerStatus & 0x08) != 0;
+        boolean coverOpen = (offlineCause & 0x04) != 0;
+        boolean cutterError = (errorCause & 0x08) != 0;
+        boolean error = (offlineCause & 0x40) != 0 || (errorCause & 0x64) != 0;
+        boolean nearEnd = (paperStatus & 0x0c) != 0;
+        boolean paperOut = (paperStatus & 0x60) != 0;
+        return new PrinterStatus(!offline, paperOut, nearEnd, coverOpen, drawer, cutterError, error || cutterError);
+    }
+}
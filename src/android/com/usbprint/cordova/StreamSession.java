@@ -0,0 +1,220 @@
+package com.usbprint.cordova;
+
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A document sent to one printer in chunks. The session runs as a single job on
+ * the printer's I/O thread, from {@link #opened()} until {@link #close}, so no
+ * other job prints in the middle of the document; it writes the chunks in the
+ * order they arrive. The bytes not yet written are tracked so JS can be told to
+ * pause above HIGH_WATERMARK and to resume (a "drain" event on the session
+ * callback) once the backlog is below LOW_WATERMARK.
+ */
+public class StreamSession {
+
+    private static final String TAG = "USBPrint";
+    public static final long HIGH_WATERMARK = 256 * 1024;
+    private static final long LOW_WATERMARK = 64 * 1024;
+    private static final long MAX_PENDING = 1024 * 1024;
+    private static final long IDLE_TIMEOUT_MS = 30000;
+    private static final byte[] END = new byte[0];
+    private static final AtomicInteger sequence = new AtomicInteger(0);
+
+    private final int streamId;
+    private final Printer printer;
+    private final PluginCallback callback;
+    private final LinkedBlockingQueue<byte[]> chunks = new LinkedBlockingQueue<byte[]>();
+    private final AtomicLong pending = new AtomicLong(0);
+    private final AtomicLong written = new AtomicLong(0);
+    private volatile boolean paused = false;
+    private volatile boolean closed = false;
+    private volatile String error = null;
+    private boolean finished = false;
+    private PluginCallback closeCallback = null;
+
+    public StreamSession(Printer printer, PluginCallback callback) {
+        this.streamId = sequence.incrementAndGet();
+        this.printer = printer;
+        this.callback = callback;
+    }
+
+    public int getStreamId() {
+        return streamId;
+    }
+
+    public Printer getPrinter() {
+        return printer;
+    }
+
+    /**
+     * Queues the session's job on the printer and sends the stream id to the
+     * session callback, which is kept for drain events.
+     */
+    public void opened() {
+        int jobId = printer.submit(new PrintJob(null) {
+            protected Object execute(Printer p) throws Exception {
+                try {
+                    pump(p);
+                } finally {
+                    ended();
+                }
+                return null;
+            }
+
+            @Override
+            protected boolean isPreemptible() {
+                // A chunk may end inside a command.
+                return false;
+            }
+        });
+        if (jobId < 0) {
+            fail(printer.isClosed() ? "Printer is disconnected" : "Printer queue is full");
+            ended();
+            return;
+        }
+        sendEvent("opened", true);
+    }
+
+    /**
+     * Queues the chunk and returns the number of bytes still waiting to be
+     * written, including it.
+     */
+    public long write(byte[] chunk) throws IOException {
+        long backlog;
+        synchronized (this) {
+            if (error != null) {
+                throw new IOException(error);
+            }
+            if (closed) {
+                throw new IOException("Stream is closed");
+            }
+            if (pending.get() + chunk.length > MAX_PENDING) {
+                throw new IOException("Stream buffer is full");
+            }
+            backlog = pending.addAndGet(chunk.length);
+            chunks.add(chunk);
+        }
+        if (backlog >= HIGH_WATERMARK) {
+            paused = true;
+        }
+        return backlog;
+    }
+
+    /** Finishes the session once every chunk written before has been printed. */
+    public void close(PluginCallback closeCallback) {
+        synchronized (this) {
+            closed = true;
+            this.closeCallback = closeCallback;
+            if (finished) {
+                answerClose();
+                return;
+            }
+        }
+        chunks.add(END);
+    }
+
+    /** Fails the session because its printer was closed. */
+    public void disconnected() {
+        synchronized (this) {
+            closed = true;
+            if (error == null) {
+                fail("Printer is disconnected");
+            }
+            answerClose();
+        }
+        chunks.add(END);
+    }
+
+    /**
+     * Writes the chunks on the printer's I/O thread until the session is closed
+     * or fails. A session left without chunks for IDLE_TIMEOUT_MS fails, so a
+     * stream JS never closes does not hold the printer forever.
+     */
+    private void pump(Printer p) throws IOException, InterruptedException {
+        try {
+            while (true) {
+                byte[] chunk = chunks.poll(IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                if (chunk == null) {
+                    throw new IOException("Stream was idle for too long");
+                }
+                if (chunk == END || error != null) {
+                    return;
+                }
+                if (p.isClosed()) {
+                    // Not spooled: part of a document printed on reconnect is of no use.
+                    throw new IOException("Printer is disconnected");
+                }
+                try {
+                    written.addAndGet(p.sendByte(chunk));
+                } finally {
+                    drained(chunk.length);
+                }
+            }
+        } catch (IOException exp) {
+            fail(exp.getMessage());
+            throw exp;
+        }
+    }
+
+    private synchronized void ended() {
+        finished = true;
+        answerClose();
+    }
+
+    /** Answers closeStream, once, when it was called; the caller holds the lock. */
+    private void answerClose() {
+        PluginCallback answer = closeCallback;
+        if (answer == null) {
+            return;
+        }
+        closeCallback = null;
+        if (error != null) {
+            answer.error(error);
+            return;
+        }
+        sendEvent("closed", false);
+        try {
+            answer.success(new JSONObject().put("streamId", streamId).put("bytesWritten", written.get()), false);
+        } catch (JSONException err) {
+            PrintLog.e(TAG, "Exception in parsing to JSON object");
+        }
+    }
+
+    private void drained(int length) {
+        long backlog = pending.addAndGet(-length);
+        if (paused && backlog <= LOW_WATERMARK) {
+            paused = false;
+            sendEvent("drain", true);
+        }
+    }
+
+    private synchronized void fail(String message) {
+        if (error != null) {
+            return;
+        }
+        error = message != null ? message : "Stream write failed";
+        if (callback != null) {
+            callback.error(error);
+        }
+    }
+
+    private void sendEvent(String event, boolean keep) {
+        if (callback == null || error != null) {
+            return;
+        }
+        try {
+            JSONObject result = new JSONObject().put("streamId", streamId).put("event", event)
+                    .put("pendingBytes", pending.get()).put("bytesWritten", written.get());
+            callback.success(result, keep);
+        } catch (JSONException err) {
+            PrintLog.e(TAG, "Exception in parsing to JSON object");
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.usbprint.cordova;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.EncodeHintType;
+import com.google.zxing.MultiFormatWriter;
+import com.google.zxing.WriterException;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Builds the commands printing QR codes and barcodes. By default the printer's
+ * own symbol commands are used (GS ( k for QR codes, GS k for barcodes), which
+ * cost a few dozen bytes. For printers without symbol support the symbol is
+ * encoded with ZXing and printed as a GS v 0 raster image instead; those images
+ * are kept in an LRU cache keyed by content and options.
+ */
+public class SymbolEncoder {
+
+    private static final int MAX_CACHED = 64;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String[] BARCODE_TYPES = { "UPC_A", "UPC_E", "EAN13", "EAN8", "CODE39", "ITF", "CODABAR",
+            "CODE93", "CODE128" };
+    private static final BarcodeFormat[] BARCODE_FORMATS = { BarcodeFormat.UPC_A, BarcodeFormat.UPC_E,
+            BarcodeFormat.EAN_13, BarcodeFormat.EAN_8, BarcodeFormat.CODE_39, BarcodeFormat.ITF,
+            BarcodeFormat.CODABAR, BarcodeFormat.CODE_93, BarcodeFormat.CODE_128 };
+    private static final String EC_LEVELS = "LMQH";
+    private static final String[] HRI_POSITIONS = { "none", "above", "below", "both" };
+
+    private final Map<String, byte[]> rasters = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+            return size() > MAX_CACHED;
+        }
+    };
+
+    /**
+     * QR code of the data with the given module size (1-16 dots) and error
+     * correction level (L, M, Q or H).
+     */
+    public ByteBuffer qrCode(String data, int moduleSize, String ecLevel, String align, boolean raster,
+            int dotWidth) throws IOException {
+        int size = Math.max(1, Math.min(16, moduleSize));
+        int ec = Math.max(0, EC_LEVELS.indexOf(ecLevel.length() > 0 ? ecLevel.toUpperCase().charAt(0) : 'M'));
+        if (raster) {
+            String key = "qr|" + size + "|" + ec + "|" + dotWidth + "|" + data;
+            return withAlign(align, cachedRaster(key, data, BarcodeFormat.QR_CODE, size, 0, ec, dotWidth), null);
+        }
+        byte[] bytes = data.getBytes(UTF8);
+        int stored = bytes.length + 3;
+        ByteBuffer cmd = ByteBuffer.allocate(3 + 9 + 8 + 8 + 8 + bytes.length + 8 + 3);
+        cmd.put(alignCommand(align));
+        cmd.put(new byte[] { 29, 40, 107, 4, 0, 49, 65, 50, 0 });
+        cmd.put(new byte[] { 29, 40, 107, 3, 0, 49, 67, (byte) size });
+        cmd.put(new byte[] { 29, 40, 107, 3, 0, 49, 69, (byte) (48 + ec) });
+        cmd.put(new byte[] { 29, 40, 107, (byte) stored, (byte) (stored >> 8), 49, 80, 48 });
+        cmd.put(bytes);
+        cmd.put(new byte[] { 29, 40, 107, 3, 0, 49, 81, 48 });
+        cmd.put(alignCommand("left"));
+        cmd.flip();
+        return cmd;
+    }
+
+    /**
+     * Barcode of the given type (UPC_A, UPC_E, EAN13, EAN8, CODE39, ITF, CODABAR,
+     * CODE93 or CODE128) with the module width (2-6 dots), the height in dots and
+     * the position of the human readable text (none, above, below or both).
+     */
+    public ByteBuffer barcode(String type, String data, int width, int height, String hri, String align,
+            boolean raster, int dotWidth) throws IOException {
+        int kind = indexOf(BARCODE_TYPES, type.toUpperCase());
+        if (kind < 0) {
+            throw new IOException("Unsupported barcode type: " + type);
+        }
+        int moduleWidth = Math.max(2, Math.min(6, width));
+        int dots = Math.max(1, Math.min(255, height));
+        int hriPosition = Math.max(0, indexOf(HRI_POSITIONS, hri.toLowerCase()));
+        if (raster) {
+            String key = "bar|" + kind + "|" + moduleWidth + "|" + dots + "|" + dotWidth + "|" + data;
+            byte[] image = cachedRaster(key, data, BARCODE_FORMATS[kind], moduleWidth, dots, 0, dotWidth);
+            return withAlign(align, image, hriPosition > 0 ? data : null);
+        }
+        if (BARCODE_FORMATS[kind] == BarcodeFormat.CODE_128 && !data.startsWith("{")) {
+            data = "{B" + data;
+        }
+        byte[] bytes = data.getBytes(ASCII);
+        if (bytes.length > 255) {
+            throw new IOException("Barcode data is too long");
+        }
+        ByteBuffer cmd = ByteBuffer.allocate(3 + 3 + 3 + 3 + 4 + bytes.length + 3);
+        cmd.put(alignCommand(align));
+        cmd.put(new byte[] { 29, 104, (byte) dots });
+        cmd.put(new byte[] { 29, 119, (byte) moduleWidth });
+        cmd.put(new byte[] { 29, 72, (byte) (48 + hriPosition) });
+        cmd.put(new byte[] { 29, 107, (byte) (65 + kind), (byte) bytes.length });
+        cmd.put(bytes);
+        cmd.put(alignCommand("left"));
+        cmd.flip();
+        return cmd;
+    }
+
+    private byte[] cachedRaster(String key, String data, BarcodeFormat format, int moduleWidth, int height, int ec,
+            int dotWidth) throws IOException {
+        synchronized (rasters) {
+            byte[] cached = rasters.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        byte[] image = rasterize(data, format, moduleWidth, height, ec, dotWidth);
+        synchronized (rasters) {
+            rasters.put(key, image);
+        }
+        return image;
+    }
+
+    /**
+     * Encodes the symbol with one pixel per module, scales every module to
+     * moduleWidth dots (reduced until the symbol fits the dot width) and to the
+     * given height for barcodes, and returns the GS v 0 bands.
+     */
+    private static byte[] rasterize(String data, BarcodeFormat format, int moduleWidth, int height, int ec,
+            int dotWidth) throws IOException {
+        Map<EncodeHintType, Object> hints = new EnumMap<EncodeHintType, Object>(EncodeHintType.class);
+        hints.put(EncodeHintType.MARGIN, 0);
+        boolean qr = format == BarcodeFormat.QR_CODE;
+        if (qr) {
+            hints.put(EncodeHintType.ERROR_CORRECTION, ErrorCorrectionLevel.values()[ec]);
+            hints.put(EncodeHintType.CHARACTER_SET, "UTF-8");
+        }
+        BitMatrix matrix;
+        try {
+            matrix = new MultiFormatWriter().encode(data, format, 0, qr ? 0 : 1, hints);
+        } catch (WriterException exp) {
+            throw new IOException("Unable to encode symbol: " + exp.getMessage());
+        } catch (IllegalArgumentException exp) {
+            throw new IOException("Unable to encode symbol: " + exp.getMessage());
+        }
+        int modules = matrix.getWidth();
+        int scale = Math.max(1, Math.min(moduleWidth, dotWidth / Math.max(modules, 1)));
+        int width = modules * scale;
+        int rows = qr ? matrix.getHeight() * scale : height;
+        int[] pixels = new int[width * rows];
+        for (int y = 0; y < rows; y++) {
+            int my = qr ? y / scale : 0;
+            for (int x = 0; x < width; x++) {
+                pixels[y * width + x] = matrix.get(x / scale, my) ? 0xff000000 : 0xffffffff;
+            }
+        }
+        ByteBuffer bands = ImageRasterizer.rasterize(pixels, width, rows, false);
+        byte[] image = new byte[bands.remaining()];
+        bands.get(image);
+        return image;
+    }
+
+    private static ByteBuffer withAlign(String align, byte[] image, String text) {
+        byte[] line = text != null ? text.getBytes(ASCII) : new byte[0];
+        ByteBuffer cmd = ByteBuffer.allocate(3 + image.length + line.length + 2 + 3);
+        cmd.put(alignCommand(align)).put(image);
+        if (text != null) {
+            cmd.put(line).put((byte) 13).put((byte) 10);
+        }
+        cmd.put(alignCommand("left"));
+        cmd.flip();
+        return cmd;
+    }
+
+    private static byte[] alignCommand(String align) {
+        return new byte[] { 27, 97, (byte) ("center".equals(align) ? 1 : "right".equals(align) ? 2 : 0) };
+    }
+
+    private static int indexOf(String[] values, String value) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i].equals(value)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,163 @@
+package com.usbprint.cordova;
+
+import java.nio.ByteBuffer;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Lays out rows of text in fixed width columns, straight into a
+ * {@link TextEncoder}'s buffer. Widths are counted in character cells as the
+ * printer prints them, so double width CJK characters take two cells, and long
+ * cells are word wrapped onto extra lines (or cut when wrapping is off). Cells
+ * are encoded from the row strings by index range, without building padded
+ * intermediate strings.
+ *
+ * Columns are given as [{width: 20, align: "left|center|right", wrap: true}, ...]
+ * with the widths in cells of the normal font; with a font size above 1 each
+ * column holds proportionally fewer characters.
+ */
+public class TableLayout {
+
+    private static final byte SPACE = 32;
+    private final int[] widths;
+    private final int[] aligns;
+    private final boolean[] wraps;
+    private final int size;
+    private final int gap;
+    private final int[] starts;
+    private final String[] texts;
+    private int fitted;
+
+    private TableLayout(int[] widths, int[] aligns, boolean[] wraps, int size, int gap) {
+        this.widths = widths;
+        this.aligns = aligns;
+        this.wraps = wraps;
+        this.size = size;
+        this.gap = gap;
+        this.starts = new int[widths.length];
+        this.texts = new String[widths.length];
+    }
+
+    /**
+     * Reads the columns, plus the font size (1-8) and the number of blank cells
+     * between columns at that size (default 1) from options.
+     */
+    public static TableLayout compile(JSONArray columns, JSONObject options) throws JSONException {
+        int count = columns.length();
+        if (count == 0) {
+            throw new JSONException("A table needs at least one column");
+        }
+        int size = options != null ? Math.max(1, Math.min(8, options.optInt("size", 1))) : 1;
+        int gap = options != null ? Math.max(0, options.optInt("gap", 1)) : 1;
+        int[] widths = new int[count];
+        int[] aligns = new int[count];
+        boolean[] wraps = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            JSONObject column = columns.getJSONObject(i);
+            widths[i] = Math.max(1, column.getInt("width") / size);
+            String align = column.optString("align", "left");
+            aligns[i] = align.equals("center") ? 1 : align.equals("right") ? 2 : 0;
+            wraps[i] = column.optBoolean("wrap", true);
+        }
+        return new TableLayout(widths, aligns, wraps, size, gap);
+    }
+
+    /**
+     * Encodes the rows, each an array with one value per column, and returns the
+     * encoder's buffer ready to be sent.
+     */
+    public synchronized ByteBuffer render(JSONArray rows, TextEncoder encoder) {
+        encoder.begin();
+        if (size > 1) {
+            encoder.append(new byte[] { 29, 33, (byte) (((size - 1) << 4) | (size - 1)) });
+        }
+        for (int r = 0; r < rows.length(); r++) {
+            JSONArray row = rows.optJSONArray(r);
+            for (int c = 0; c < widths.length; c++) {
+                texts[c] = row != null ? row.optString(c, "") : "";
+                starts[c] = 0;
+            }
+            boolean more = true;
+            while (more) {
+                more = false;
+                int pending = 0;
+                for (int c = 0; c < widths.length; c++) {
+                    String text = texts[c];
+                    int start = starts[c];
+                    int end = fit(text, start, widths[c], wraps[c], encoder);
+                    int free = Math.max(0, widths[c] - fitted);
+                    int before = aligns[c] == 2 ? free : aligns[c] == 1 ? free / 2 : 0;
+                    pending += (c > 0 ? gap : 0) + before;
+                    if (end > start) {
+                        encoder.repeat(SPACE, pending);
+                        encoder.append(text, start, end);
+                        pending = 0;
+                    }
+                    pending += free - before;
+                    starts[c] = wraps[c] ? next(text, end) : text.length();
+                    more |= starts[c] < text.length();
+                }
+                encoder.restoreCodePage().append((byte) 13).append((byte) 10);
+            }
+        }
+        if (size > 1) {
+            encoder.append(new byte[] { 29, 33, 0 });
+        }
+        return encoder.finish();
+    }
+
+    /**
+     * Returns the end of the longest part of text from start which fits in width
+     * cells, breaking after the last space when a word would be split, and leaves
+     * the cells it takes in fitted.
+     */
+    private int fit(String text, int start, int width, boolean wrap, TextEncoder encoder) {
+        int length = text.length();
+        int used = 0;
+        int i = start;
+        int lastSpace = -1;
+        int usedAtSpace = 0;
+        while (i < length) {
+            char c = text.charAt(i);
+            if (c == '\n') {
+                break;
+            }
+            int step = Character.isHighSurrogate(c) && i + 1 < length ? 2 : 1;
+            int cells = step == 2 ? 2 : encoder.displayWidth(c);
+            if (used + cells > width) {
+                if (i == start) {
+                    // A character wider than the column still has to go somewhere.
+                    i += step;
+                    used = cells;
+                }
+                break;
+            }
+            if (c == ' ') {
+                lastSpace = i;
+                usedAtSpace = used;
+            }
+            used += cells;
+            i += step;
+        }
+        if (wrap && i < length && text.charAt(i) != ' ' && text.charAt(i) != '\n' && lastSpace > start) {
+            i = lastSpace;
+            used = usedAtSpace;
+        }
+        fitted = used;
+        return i;
+    }
+
+    /** Start of the next line of a wrapped cell: skips the spaces or the line break at the wrap point. */
+    private static int next(String text, int end) {
+        int length = text.length();
+        if (end < length && text.charAt(end) == '\n') {
+            return end + 1;
+        }
+        while (end < length && text.charAt(end) == ' ') {
+            end++;
+        }
+        return end;
+    }
+}
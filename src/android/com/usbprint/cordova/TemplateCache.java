@@ -0,0 +1,31 @@
+package com.usbprint.cordova;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compiled receipt templates by id. The least recently printed template is
+ * dropped once more than MAX_TEMPLATES are registered.
+ */
+public class TemplateCache {
+
+    private static final int MAX_TEMPLATES = 32;
+    private final Map<String, ReceiptTemplate> templates = new LinkedHashMap<String, ReceiptTemplate>(16, 0.75f,
+            true) {
+        protected boolean removeEldestEntry(Map.Entry<String, ReceiptTemplate> eldest) {
+            return size() > MAX_TEMPLATES;
+        }
+    };
+
+    public synchronized void put(String templateId, ReceiptTemplate template) {
+        templates.put(templateId, template);
+    }
+
+    public synchronized ReceiptTemplate get(String templateId) {
+        return templates.get(templateId);
+    }
+
+    public synchronized void remove(String templateId) {
+        templates.remove(templateId);
+    }
+}
@@ -0,0 +1,242 @@
+package com.usbprint.cordova;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encodes text for one printer into a pooled direct buffer. Text is encoded with
+ * the primary charset, and characters it cannot map are written in the first
+ * fallback code page which can, switching the printer with FS . / ESC t n and
+ * back with FS & (or ESC t n) so mixed Latin, CJK and Cyrillic text comes out in
+ * one pass. The printer is always left in the primary code page.
+ */
+public class TextEncoder {
+
+    private static final int INITIAL_CAPACITY = 4 * 1024;
+    private static final byte[] CRLF = new byte[] { 13, 10 };
+    private static final String[] CJK_CHARSETS = new String[] { "GBK", "GB2312", "GB18030", "Big5", "Shift_JIS",
+            "EUC-KR" };
+    private static final String[] FALLBACK_CHARSETS = new String[] { "windows-1252", "IBM866", "IBM852" };
+    private static final int[] FALLBACK_PAGES = new int[] { 16, 17, 18 };
+
+    private final String charset;
+    private final Charset[] charsets;
+    private final CharsetEncoder[] encoders;
+    private final byte[][] selects;
+    private final boolean cjk;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(INITIAL_CAPACITY);
+    private int current = 0;
+    private byte[] widths = null;
+    private CharsetEncoder widthEncoder = null;
+
+    public TextEncoder(String charset) {
+        this.charset = charset;
+        Charset primary;
+        try {
+            primary = Charset.forName(charset);
+        } catch (IllegalArgumentException exp) {
+            primary = Charset.defaultCharset();
+        }
+        this.cjk = isCjk(primary);
+        List<Charset> pages = new ArrayList<Charset>();
+        List<byte[]> selections = new ArrayList<byte[]>();
+        pages.add(primary);
+        selections.add(cjk ? new byte[] { 28, 38 } : selectPage(primary));
+        for (int i = 0; i < FALLBACK_CHARSETS.length; i++) {
+            if (!Charset.isSupported(FALLBACK_CHARSETS[i])) {
+                continue;
+            }
+            pages.add(Charset.forName(FALLBACK_CHARSETS[i]));
+            selections.add(cjk ? new byte[] { 28, 46, 27, 116, (byte) FALLBACK_PAGES[i] }
+                    : new byte[] { 27, 116, (byte) FALLBACK_PAGES[i] });
+        }
+        this.charsets = pages.toArray(new Charset[pages.size()]);
+        this.selects = selections.toArray(new byte[selections.size()][]);
+        this.encoders = new CharsetEncoder[charsets.length];
+    }
+
+    public String getCharset() {
+        return charset;
+    }
+
+    /** Encodes one line followed by CRLF and returns the pooled buffer ready to send. */
+    public ByteBuffer encodeLine(CharSequence msg) {
+        begin();
+        append(msg);
+        restoreCodePage();
+        append(CRLF);
+        return finish();
+    }
+
+    /** Clears the pooled buffer before appending a new payload. */
+    public TextEncoder begin() {
+        buffer.clear();
+        current = 0;
+        return this;
+    }
+
+    public TextEncoder append(CharSequence text) {
+        return append(text, 0, text.length());
+    }
+
+    public TextEncoder append(CharSequence text, int start, int end) {
+        CharBuffer in = CharBuffer.wrap(text, start, end);
+        while (in.hasRemaining()) {
+            CharsetEncoder encoder = encoder(current);
+            encoder.reset();
+            CoderResult result = encoder.encode(in, buffer, true);
+            if (result.isOverflow()) {
+                grow(in.remaining() * 2);
+            } else if (result.isError()) {
+                int page = pageFor(in.get(in.position()));
+                if (page < 0) {
+                    ensureCapacity(1);
+                    buffer.put((byte) '?');
+                    in.position(in.position() + result.length());
+                } else {
+                    select(page);
+                }
+            } else if (encoder.flush(buffer).isOverflow()) {
+                grow(16);
+            }
+        }
+        return this;
+    }
+
+    public TextEncoder append(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        buffer.put(bytes);
+        return this;
+    }
+
+    public TextEncoder append(byte b) {
+        ensureCapacity(1);
+        buffer.put(b);
+        return this;
+    }
+
+    /** Appends the byte count times. */
+    public TextEncoder repeat(byte b, int count) {
+        if (count <= 0) {
+            return this;
+        }
+        ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            buffer.put(b);
+        }
+        return this;
+    }
+
+    /**
+     * Number of character cells the printer uses for c. With a CJK code page every
+     * character encoded as two bytes (ideographs, kana, hangul, full-width forms,
+     * but also e.g. Greek or pinyin letters in GBK) is printed double width;
+     * characters falling back to a single byte code page take one cell. The
+     * answer is looked up in a table filled on first use of each character.
+     */
+    public int displayWidth(char c) {
+        if (c < 0x80 || !cjk) {
+            return 1;
+        }
+        if (widths == null) {
+            widths = new byte[65536];
+            widthEncoder = charsets[0].newEncoder();
+        }
+        int width = widths[c];
+        if (width == 0) {
+            boolean halfWidthKana = c >= 0xFF61 && c <= 0xFF9F;
+            width = !halfWidthKana && widthEncoder.canEncode(c) ? 2 : 1;
+            widths[c] = (byte) width;
+        }
+        return width;
+    }
+
+    /** Number of bytes appended since {@link #begin()}. */
+    public int position() {
+        return buffer.position();
+    }
+
+    /** Switches the printer back to the primary code page if a fallback one is active. */
+    public TextEncoder restoreCodePage() {
+        if (current != 0) {
+            select(0);
+        }
+        return this;
+    }
+
+    /** Restores the primary code page and returns the pooled buffer flipped for sending. */
+    public ByteBuffer finish() {
+        restoreCodePage();
+        buffer.flip();
+        return buffer;
+    }
+
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    private void select(int page) {
+        append(selects[page]);
+        current = page;
+    }
+
+    private int pageFor(char c) {
+        for (int i = 0; i < charsets.length; i++) {
+            if (i != current && encoder(i).canEncode(c)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private CharsetEncoder encoder(int page) {
+        CharsetEncoder encoder = encoders[page];
+        if (encoder == null) {
+            encoder = charsets[page].newEncoder().onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT);
+            encoders[page] = encoder;
+        }
+        return encoder;
+    }
+
+    private void ensureCapacity(int needed) {
+        if (buffer.remaining() < needed) {
+            grow(needed);
+        }
+    }
+
+    private void grow(int needed) {
+        int capacity = buffer.capacity() * 2;
+        while (capacity - buffer.position() < needed) {
+            capacity *= 2;
+        }
+        ByteBuffer grown = ByteBuffer.allocateDirect(capacity);
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+    }
+
+    private static boolean isCjk(Charset cs) {
+        for (String name : CJK_CHARSETS) {
+            if (cs.name().equalsIgnoreCase(name) || cs.aliases().contains(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte[] selectPage(Charset cs) {
+        for (int i = 0; i < FALLBACK_CHARSETS.length; i++) {
+            if (cs.name().equalsIgnoreCase(FALLBACK_CHARSETS[i])) {
+                return new byte[] { 27, 116, (byte) FALLBACK_PAGES[i] };
+            }
+        }
+        return new byte[] { 27, 116, 0 };
+    }
+}
@@ -0,0 +1,140 @@
+package com.usbprint.cordova;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Streams a payload to a {@link BulkChannel} in chunks sized to the endpoint's
+ * max packet size, keeping several chunks in flight so the bus is not idle
+ * between submissions. Short writes are retried from the first byte which did
+ * not reach the printer. With a {@link FlowControl} the chunk size, the chunks
+ * in flight and the pacing follow the printer's drain rate.
+ */
+public class TransferEngine {
+
+    public static final int TRANSFER_TIMEOUT_MS = 5000;
+    private static final int PACKETS_PER_CHUNK = 64;
+    private static final int MAX_RETRIES = 3;
+    private final BulkChannel channel;
+    private final PrinterStats stats;
+    private final FlowControl flow;
+    private final ArrayDeque<ByteBuffer> inFlight = new ArrayDeque<ByteBuffer>();
+
+    public TransferEngine(BulkChannel channel) {
+        this(channel, null);
+    }
+
+    public TransferEngine(BulkChannel channel, PrinterStats stats) {
+        this(channel, stats, null);
+    }
+
+    public TransferEngine(BulkChannel channel, PrinterStats stats, FlowControl flow) {
+        this.channel = channel;
+        this.stats = stats;
+        this.flow = flow;
+    }
+
+    public int getChunkSize() {
+        int size = flow != null ? flow.getChunkSize() : Math.max(channel.getMaxPacketSize(), 1) * PACKETS_PER_CHUNK;
+        return Math.min(size, channel.getMaxTransferSize());
+    }
+
+    private int getMaxInFlight() {
+        if (flow != null) {
+            return flow.getWindow();
+        }
+        return Math.max(channel.getMaxInFlight(), 1);
+    }
+
+    public FlowControl getFlowControl() {
+        return flow;
+    }
+
+    public int write(byte[] data) throws IOException {
+        return write(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Writes the remaining bytes of the buffer and returns the number of bytes
+     * written. Throws a {@link TransferException} carrying the bytes written so
+     * far when the printer stops accepting data.
+     */
+    public synchronized int write(ByteBuffer data) throws IOException {
+        int written = 0;
+        int retries = 0;
+        if (flow != null) {
+            flow.begin();
+        }
+        try {
+            while (data.hasRemaining() || !inFlight.isEmpty()) {
+                while (data.hasRemaining() && inFlight.size() < getMaxInFlight()) {
+                    ByteBuffer chunk = data.slice();
+                    chunk.limit(Math.min(getChunkSize(), data.remaining()));
+                    if (flow != null) {
+                        flow.pace(chunk.limit());
+                    }
+                    data.position(data.position() + chunk.limit());
+                    channel.submit(chunk);
+                    inFlight.add(chunk);
+                }
+                ByteBuffer done = channel.awaitCompletion(TRANSFER_TIMEOUT_MS);
+                if (done == null) {
+                    if (stats != null) {
+                        stats.timeout();
+                    }
+                    throw new TransferException("Timed out writing to printer", written);
+                }
+                if (done != inFlight.peek()) {
+                    throw new TransferException("USB writes completed out of order", written);
+                }
+                inFlight.poll();
+                written += done.position();
+                if (done.hasRemaining()) {
+                    if (stats != null) {
+                        stats.shortWrite();
+                    }
+                    if (flow != null) {
+                        flow.congested();
+                    }
+                    retries = done.position() > 0 ? 0 : retries + 1;
+                    if (retries > MAX_RETRIES) {
+                        throw new TransferException("Printer stopped accepting data", written);
+                    }
+                    data.position(rewind(data.position(), done, written));
+                } else {
+                    retries = 0;
+                    if (flow != null) {
+                        flow.completed(done.limit());
+                    }
+                }
+            }
+        } finally {
+            if (flow != null) {
+                flow.finish();
+            }
+            if (!inFlight.isEmpty()) {
+                channel.cancelAll();
+                inFlight.clear();
+            }
+        }
+        return written;
+    }
+
+    /**
+     * After a short write, waits for the chunks queued behind it and returns the
+     * position from which the payload has to be sent again.
+     */
+    private int rewind(int position, ByteBuffer shortChunk, int written) throws IOException {
+        int pending = shortChunk.remaining();
+        while (!inFlight.isEmpty()) {
+            ByteBuffer later = channel.awaitCompletion(TRANSFER_TIMEOUT_MS);
+            if (later == null || later != inFlight.peek() || later.position() > 0) {
+                throw new TransferException("Printer stopped accepting data", written);
+            }
+            inFlight.poll();
+            pending += later.limit();
+        }
+        return position - pending;
+    }
+}
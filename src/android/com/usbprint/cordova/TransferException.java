@@ -0,0 +1,26 @@
+package com.usbprint.cordova;
+
+import java.io.IOException;
+
+public class TransferException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String reason;
+    private final int bytesWritten;
+
+    public TransferException(String message, int bytesWritten) {
+        super(message + " (" + bytesWritten + " bytes written)");
+        this.reason = message;
+        this.bytesWritten = bytesWritten;
+    }
+
+    public int getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /** The same failure, also counting the bytes written by earlier writes of the transfer. */
+    public TransferException after(int bytesBefore) {
+        return bytesBefore == 0 ? this : new TransferException(reason, bytesBefore + bytesWritten);
+    }
+}
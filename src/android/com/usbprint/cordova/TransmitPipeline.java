@@ -0,0 +1,209 @@
+package com.usbprint.cordova;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Transmit stage of a printer's print path. The printer's worker renders a job
+ * and hands each transfer over in one of a small ring of pre-allocated buffers;
+ * this pipeline's own thread writes them to the printer in order while the
+ * worker already renders the next job. A job is completed once the last of its
+ * transfers has been written. When all buffers are in flight the worker waits,
+ * so rendering never runs more than a few transfers ahead of the printer.
+ */
+public class TransmitPipeline implements Runnable {
+
+    private static final String TAG = "USBPrint";
+    private static final int SLOTS = 4;
+    private static final int SLOT_CAPACITY = 16 * 1024;
+    private static final Object STOP = new Object();
+
+    private final Printer printer;
+    private final ArrayBlockingQueue<Slot> free = new ArrayBlockingQueue<Slot>(SLOTS);
+    private final LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<Object>();
+    private final Object idleLock = new Object();
+    private int pending = 0;
+    private volatile boolean running = true;
+    private volatile String stopMessage = null;
+    private Thread thread;
+
+    private static class Slot {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(SLOT_CAPACITY);
+        PrintJob job;
+        long seq;
+    }
+
+    public TransmitPipeline(Printer printer) {
+        this.printer = printer;
+        for (int i = 0; i < SLOTS; i++) {
+            free.add(new Slot());
+        }
+    }
+
+    /**
+     * Copies the remaining bytes of data into a free buffer, waiting for one if
+     * all are in flight, and queues it for the job. seq is the transfer's spool
+     * record, or -1. Returns the number of bytes queued. A transfer too big for a
+     * buffer is written on the calling thread once everything queued before it
+     * is, so the buffers keep their size.
+     */
+    public int enqueue(PrintJob job, ByteBuffer data, long seq) throws IOException {
+        if (!running) {
+            throw new IOException(stopMessage);
+        }
+        int length = data.remaining();
+        if (length > SLOT_CAPACITY) {
+            try {
+                drain();
+            } catch (InterruptedException exp) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the printer");
+            }
+            if (!running) {
+                throw new IOException(stopMessage);
+            }
+            if (job.hasFailed() && !job.isCancelled()) {
+                printer.skipped(seq);
+                data.position(data.limit());
+                return length;
+            }
+            return printer.transmit(data, seq, job);
+        }
+        Slot slot;
+        try {
+            slot = free.take();
+        } catch (InterruptedException exp) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the printer");
+        }
+        slot.buffer.clear();
+        slot.buffer.put(data);
+        slot.buffer.flip();
+        slot.job = job;
+        slot.seq = seq;
+        submit(slot);
+        return length;
+    }
+
+    /** Completes the job once every transfer queued before is written. */
+    public void finish(PrintJob job) {
+        submit(job);
+    }
+
+    /** Waits until everything queued has been written. */
+    public void drain() throws InterruptedException {
+        synchronized (idleLock) {
+            while (pending > 0) {
+                idleLock.wait();
+            }
+        }
+    }
+
+    /**
+     * Stops the transmit thread. Transfers not written yet are dropped (they stay
+     * in the spool, if any) and their jobs fail with the given message; a job
+     * whose transfers were all written completes as usual.
+     */
+    public void stop(String message) {
+        synchronized (this) {
+            stopMessage = message;
+            running = false;
+            if (thread == null) {
+                return;
+            }
+        }
+        queue.add(STOP);
+    }
+
+    private void submit(Object item) {
+        synchronized (this) {
+            if (running) {
+                if (thread == null) {
+                    thread = new Thread(this, "USBPrint-tx-" + printer.getPrinterName());
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+                synchronized (idleLock) {
+                    pending++;
+                }
+                // Queued ahead of STOP, which stop() only adds once running is cleared.
+                queue.add(item);
+                return;
+            }
+        }
+        // Stopped, so nothing will take the item.
+        discard(item);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            Object item;
+            try {
+                item = queue.take();
+            } catch (InterruptedException exp) {
+                break;
+            }
+            if (item == STOP) {
+                break;
+            }
+            if (!running) {
+                discard(item);
+            } else if (item instanceof Slot) {
+                transmit((Slot) item);
+            } else {
+                ((PrintJob) item).transmitted();
+            }
+            done();
+        }
+        Object item;
+        while ((item = queue.poll()) != null) {
+            if (item != STOP) {
+                discard(item);
+                done();
+            }
+        }
+    }
+
+    private void transmit(Slot slot) {
+        try {
+            // A cancelled job goes through transmit too, so its spool records are dropped.
+            if (!slot.job.hasFailed() || slot.job.isCancelled()) {
+                printer.transmit(slot.buffer, slot.seq, slot.job);
+            } else {
+                printer.skipped(slot.seq);
+            }
+        } catch (IOException exp) {
+            PrintLog.e(TAG, "Transfer of job " + slot.job.getJobId() + " failed on printer " + printer.getPrinterName(), exp);
+            slot.job.transmitFailed(exp.getMessage() != null ? exp.getMessage() : exp.toString());
+        } finally {
+            release(slot);
+        }
+    }
+
+    private void discard(Object item) {
+        if (item instanceof Slot) {
+            Slot slot = (Slot) item;
+            slot.job.transmitFailed(stopMessage);
+            release(slot);
+        } else if (item instanceof PrintJob) {
+            // Only fails if one of its transfers was dropped above; the rest were written.
+            ((PrintJob) item).transmitted();
+        }
+    }
+
+    private void release(Slot slot) {
+        slot.job = null;
+        free.offer(slot);
+    }
+
+    private void done() {
+        synchronized (idleLock) {
+            pending--;
+            idleLock.notifyAll();
+        }
+    }
+}
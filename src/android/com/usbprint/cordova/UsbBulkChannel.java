@@ -0,0 +1,148 @@
+package com.usbprint.cordova;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbRequest;
+import android.os.Build;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * {@link BulkChannel} on top of a claimed bulk OUT endpoint. From Android 8.0
+ * writes are queued as {@link UsbRequest}s so several can be in flight, older
+ * releases fall back to one synchronous bulkTransfer per write.
+ */
+public class UsbBulkChannel implements BulkChannel {
+
+    private static final int MAX_IN_FLIGHT = 4;
+    private static final int CANCEL_TIMEOUT_MS = 100;
+    // Before Android 9 a single USB request or bulkTransfer takes at most 16 KB.
+    private static final int LEGACY_MAX_TRANSFER = 16384;
+    private final UsbDeviceConnection conn;
+    private final UsbEndpoint ep;
+    private final boolean async;
+    private final ArrayDeque<UsbRequest> idle = new ArrayDeque<UsbRequest>();
+    private final ArrayDeque<UsbRequest> busy = new ArrayDeque<UsbRequest>();
+    private final ArrayDeque<ByteBuffer> completed = new ArrayDeque<ByteBuffer>();
+    private final ArrayDeque<UsbRequest> stale = new ArrayDeque<UsbRequest>();
+    private byte[] scratch;
+
+    public UsbBulkChannel(UsbDeviceConnection conn, UsbEndpoint ep) {
+        this.conn = conn;
+        this.ep = ep;
+        this.async = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O;
+    }
+
+    public int getMaxPacketSize() {
+        return ep.getMaxPacketSize();
+    }
+
+    public int getMaxTransferSize() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.P ? Integer.MAX_VALUE : LEGACY_MAX_TRANSFER;
+    }
+
+    public int getMaxInFlight() {
+        return async ? MAX_IN_FLIGHT : 1;
+    }
+
+    public void submit(ByteBuffer buffer) throws IOException {
+        if (!async) {
+            writeSync(buffer);
+            return;
+        }
+        UsbRequest request = idle.poll();
+        if (request == null) {
+            request = new UsbRequest();
+            if (!request.initialize(conn, ep)) {
+                throw new IOException("Unable to initialize USB request");
+            }
+        }
+        request.setClientData(buffer);
+        if (!request.queue(buffer)) {
+            idle.add(request);
+            throw new IOException("Unable to queue USB request");
+        }
+        busy.add(request);
+    }
+
+    public ByteBuffer awaitCompletion(long timeoutMs) throws IOException {
+        if (!async) {
+            return completed.poll();
+        }
+        if (busy.isEmpty()) {
+            return null;
+        }
+        UsbRequest request;
+        try {
+            request = conn.requestWait(timeoutMs);
+            while (request != null && stale.remove(request)) {
+                // Cancelled earlier but not reaped in time, it is only closed now.
+                request.close();
+                request = conn.requestWait(timeoutMs);
+            }
+        } catch (TimeoutException exp) {
+            return null;
+        }
+        if (request == null || !busy.remove(request)) {
+            throw new IOException("USB request failed");
+        }
+        idle.add(request);
+        return (ByteBuffer) request.getClientData();
+    }
+
+    /**
+     * Cancels the requests in flight. A cancelled request still completes and
+     * has to be reaped by requestWait before it is reused or closed, or a later
+     * requestWait could return it; those not reaped in time are closed once a
+     * later wait returns them.
+     */
+    public void cancelAll() {
+        for (UsbRequest request : busy) {
+            request.cancel();
+        }
+        while (!busy.isEmpty()) {
+            UsbRequest request;
+            try {
+                request = conn.requestWait(CANCEL_TIMEOUT_MS);
+            } catch (TimeoutException exp) {
+                break;
+            }
+            if (request == null) {
+                break;
+            }
+            if (busy.remove(request)) {
+                idle.add(request);
+            } else if (stale.remove(request)) {
+                request.close();
+            }
+        }
+        stale.addAll(busy);
+        busy.clear();
+        completed.clear();
+    }
+
+    public void close() {
+        cancelAll();
+        UsbRequest request;
+        while ((request = idle.poll()) != null) {
+            request.close();
+        }
+        while ((request = stale.poll()) != null) {
+            request.close();
+        }
+    }
+
+    private void writeSync(ByteBuffer buffer) throws IOException {
+        int length = buffer.remaining();
+        if (scratch == null || scratch.length < length) {
+            scratch = new byte[length];
+        }
+        buffer.get(scratch, 0, length);
+        int sent = conn.bulkTransfer(ep, scratch, 0, length, TransferEngine.TRANSFER_TIMEOUT_MS);
+        buffer.position(Math.max(sent, 0));
+        completed.add(buffer);
+    }
+}
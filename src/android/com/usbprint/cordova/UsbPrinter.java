@@ -0,0 +1,136 @@
+package com.usbprint.cordova;
+
+import android.hardware.usb.UsbConstants;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbManager;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * {@link Printer} on an Android USB device. The device is opened and its
+ * interface claimed when the printer is first used, and its status is read
+ * with the GET_PORT_STATUS request of the USB printer class.
+ */
+public class UsbPrinter extends Printer {
+
+    private static final String TAG = "USBPrint";
+    private static final int STATUS_TIMEOUT_MS = 1000;
+    private final UsbManager usbManager;
+    private final UsbDevice device;
+    private final Object connLock = new Object();
+    private volatile UsbDeviceConnection conn = null;
+    private volatile String identity = null;
+
+    public UsbPrinter(UsbManager usbManager, UsbDevice usbDevice, String printer_name, PluginCallback callback) {
+        super(printer_name, callback);
+        this.usbManager = usbManager;
+        this.device = usbDevice;
+    }
+
+    public static String nameOf(UsbDevice usbDevice) {
+        return usbDevice.getVendorId() + "_" + usbDevice.getDeviceId();
+    }
+
+    /**
+     * Key which stays the same when the printer is unplugged and plugged in again:
+     * its vendor, product and serial number. A printer without a serial number is
+     * told apart from identical ones by its device path instead, which only stays
+     * the same until it is replugged. Android 10+ only exposes the serial number
+     * once permission is granted, so the key is only computed after that.
+     */
+    public static String identityOf(UsbDevice usbDevice) {
+        String serial = serialOf(usbDevice);
+        return usbDevice.getVendorId() + ":" + usbDevice.getProductId() + ":"
+                + (serial != null && serial.length() > 0 ? serial : usbDevice.getDeviceName());
+    }
+
+    public static boolean isPrinter(UsbDevice usbDevice) {
+        return usbDevice.getInterfaceCount() > 0
+                && UsbConstants.USB_CLASS_PRINTER == usbDevice.getInterface(0).getInterfaceClass();
+    }
+
+    private static String serialOf(UsbDevice usbDevice) {
+        try {
+            return usbDevice.getSerialNumber();
+        } catch (SecurityException exp) {
+            Log.e(TAG, "Serial number of " + nameOf(usbDevice) + " read without permission", exp);
+            return null;
+        }
+    }
+
+    /** See {@link #identityOf(UsbDevice)}; it is kept once permission is granted. */
+    @Override
+    public String getIdentity() {
+        String current = this.identity;
+        if (current != null) {
+            return current;
+        }
+        current = identityOf(this.device);
+        if (isPermissionGranted()) {
+            this.identity = current;
+        }
+        return current;
+    }
+
+    @Override
+    public boolean isPermissionGranted() {
+        return this.usbManager.hasPermission(this.device);
+    }
+
+    public byte revByte() {
+        byte[] bits = new byte[2];
+        try {
+            if (openConnection().controlTransfer(161, 1, 0, 0, bits, bits.length, STATUS_TIMEOUT_MS) < 0) {
+                return -1;
+            }
+        } catch (Exception exp) {
+            // Reported as offline; the detach broadcast tears the printer down if it is gone.
+            Log.e(TAG, "Exception thrown while connecting to usb printer", exp);
+            return -1;
+        }
+        return bits[0];
+    }
+
+    @Override
+    protected int readPortStatus() {
+        return revByte();
+    }
+
+    @Override
+    protected PrinterTransport openPort() throws IOException {
+        UsbTransport usb = UsbTransport.open(openConnection(), this.device, getStats());
+        setFlowControl(usb.getFlowControl());
+        return usb;
+    }
+
+    @Override
+    protected void closePort() {
+        synchronized (this.connLock) {
+            if (this.conn != null) {
+                this.conn.close();
+                this.conn = null;
+            }
+        }
+    }
+
+    private UsbDeviceConnection openConnection() throws IOException {
+        UsbDeviceConnection current = this.conn;
+        if (current != null) {
+            return current;
+        }
+        synchronized (this.connLock) {
+            if (isClosed()) {
+                throw new IOException("Printer is disconnected");
+            }
+            if (this.conn == null) {
+                this.conn = this.usbManager.openDevice(this.device);
+                if (this.conn == null) {
+                    throw new IOException("Unable to open printer " + getPrinterName());
+                }
+            }
+            return this.conn;
+        }
+    }
+}
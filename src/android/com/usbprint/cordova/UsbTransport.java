@@ -0,0 +1,93 @@
+package com.usbprint.cordova;
+
+import android.hardware.usb.UsbConstants;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link PrinterTransport} over the bulk endpoints of the printer's first USB
+ * interface. Writes go through a {@link TransferEngine}.
+ */
+public class UsbTransport implements PrinterTransport {
+
+    private final UsbDeviceConnection conn;
+    private final UsbInterface usbInt;
+    private final UsbEndpoint ep;
+    private final UsbEndpoint epIn;
+    private final UsbBulkChannel channel;
+    private final TransferEngine engine;
+
+    private UsbTransport(UsbDeviceConnection conn, UsbInterface usbInt, UsbEndpoint ep, UsbEndpoint epIn,
+            PrinterStats stats, String model) {
+        this.conn = conn;
+        this.usbInt = usbInt;
+        this.ep = ep;
+        this.epIn = epIn;
+        this.channel = new UsbBulkChannel(conn, ep);
+        this.engine = new TransferEngine(channel, stats,
+                new FlowControl(model, channel.getMaxPacketSize(), channel.getMaxInFlight()));
+    }
+
+    /**
+     * Claims the first interface of the device and looks up its bulk endpoints.
+     * Short writes and timeouts are counted in stats when it is not null.
+     */
+    public static UsbTransport open(UsbDeviceConnection conn, UsbDevice device, PrinterStats stats)
+            throws IOException {
+        if (device.getInterfaceCount() == 0) {
+            throw new IOException("Printer has no USB interface");
+        }
+        UsbInterface usbInt = device.getInterface(0);
+        UsbEndpoint ep = null;
+        UsbEndpoint epIn = null;
+        for (int i = 0; i < usbInt.getEndpointCount(); i++) {
+            UsbEndpoint endpoint = usbInt.getEndpoint(i);
+            if (endpoint.getType() != UsbConstants.USB_ENDPOINT_XFER_BULK) {
+                continue;
+            }
+            if (endpoint.getDirection() == UsbConstants.USB_DIR_OUT) {
+                ep = endpoint;
+            } else {
+                epIn = endpoint;
+            }
+        }
+        if (ep == null) {
+            throw new IOException("Printer has no bulk OUT endpoint");
+        }
+        if (!conn.claimInterface(usbInt, true)) {
+            throw new IOException("Unable to claim printer interface");
+        }
+        return new UsbTransport(conn, usbInt, ep, epIn, stats,
+                FlowControl.modelOf(device.getVendorId(), device.getProductId()));
+    }
+
+    public int write(ByteBuffer data) throws IOException {
+        return engine.write(data);
+    }
+
+    public int read(byte[] buffer, int length, int timeoutMs) throws IOException {
+        if (epIn == null) {
+            throw new IOException("Printer has no bulk IN endpoint");
+        }
+        int n = conn.bulkTransfer(epIn, buffer, length, timeoutMs);
+        return n > 0 ? n : -1;
+    }
+
+    public FlowControl getFlowControl() {
+        return engine.getFlowControl();
+    }
+
+    public boolean canRead() {
+        return epIn != null;
+    }
+
+    public void close() {
+        channel.close();
+        conn.releaseInterface(usbInt);
+    }
+}
@@ -2,8 +2,44 @@ module.exports = {
     print: function(printername, msg, successCallback, failureCallback) {
         cordova.exec(successCallback, failureCallback, "PrinterService", "print", [printername, msg]);
     },
-    sendCommand: function(printername, command, successCallback, failureCallback) {
-        cordova.exec(successCallback, failureCallback, "PrinterService", "sendCommand", [printername, command]);
+    printBatch: function(printername, msgs, successCallback, failureCallback) {
+        cordova.exec(successCallback, failureCallback, "PrinterService", "printBatch", [printername, msgs]);
+    },
+    printImage: function(printername, image, options, successCallback, failureCallback) {
+        cordova.exec(successCallback, failureCallback, "PrinterService", "printImage", [printername, image, options || {}]);
+    },
+    printTable: function(printername, columns, rows, options, successCallback, failureCallback) {
+        cordova.exec(successCallback, failureCallback, "PrinterService", "printTable", [printername, columns, rows, options || {}]);
+    },
+    printQRCode: function(printername, data, options, successCallback, failureCallback) {
+        cordova.exec(successCallback, failureCallback, "PrinterService", "printQRCode", [printername, data, options || {}]);
+    },
+    printBarcode: function(printername, data, options, successCallback, failureCallback) {
+        cordova.exec(successCallback, failureCallback, "PrinterService", "printBarcode", [printername, data, options || {}]);
+    },
+    uploadLogo: function(printername, key, image, options, successCallback, failureCallback) {
+        cordova.exec(successCallback, failureCallback, "PrinterService", "uploadLogo", [printername, key, image, options || {}]);
+    },
+    printLogo: function(printername, key, successCallback, failureCallback) {
+        cordova.exec(successCallback, failureCallback, "PrinterService", "printLogo", [printername, key]);
+    },
+    registerTemplate: function(templateId, layout, successCallback, failureCallback) {
+        cordova.exec(successCallback, failureCallback, "PrinterService", "registerTemplate", [templateId, layout]);
+    },
+    printTemplate: function(printername, templateId, data, successCallback, failureCallback) {
+        cordova.exec(successCallback, failureCallback, "PrinterService", "printTemplate", [printername, templateId, data || {}]);
+    },
+    openStream: function(printername, successCallback, failureCallback) {
+        cordova.exec(successCallback, failureCallback, "PrinterService", "openStream", [printername]);
+    },
+    writeStream: function(streamId, chunk, successCallback, failureCallback) {
+        cordova.exec(successCallback, failureCallback, "PrinterService", "writeStream", [streamId, chunk]);
+    },
+    closeStream: function(streamId, successCallback, failureCallback) {
+        cordova.exec(successCallback, failureCallback, "PrinterService", "closeStream", [streamId]);
+    },
+    sendCommand: function(printername, command, successCallback, failureCallback, priority) {
+        cordova.exec(successCallback, failureCallback, "PrinterService", "sendCommand", [printername, command, priority || "normal"]);
     },
     connect: function(printername, successCallback, failureCallback) {
         cordova.exec(successCallback, failureCallback, "PrinterService", "connect", [printername]);
@@ -17,7 +53,43 @@ module.exports = {
     isPaperAvailable: function(printername, successCallback, failureCallback) {
         cordova.exec(successCallback, failureCallback, "PrinterService", "isPaperAvailable", [printername]);
     },
-    cutPaper: function(printername, successCallback, failureCallback) {
-        cordova.exec(successCallback, failureCallback, "PrinterService", "cutPaper", [printername]);
+    watchStatus: function(printername, ttl, successCallback, failureCallback) {
+        cordova.exec(successCallback, failureCallback, "PrinterService", "watchStatus", [printername, ttl || 0]);
+    },
+    startStatusReader: function(printername, asb, successCallback, failureCallback) {
+        cordova.exec(successCallback, failureCallback, "PrinterService", "startStatusReader", [printername, !!asb]);
+    },
+    stopStatusReader: function(printername, successCallback, failureCallback) {
+        cordova.exec(successCallback, failureCallback, "PrinterService", "stopStatusReader", [printername]);
+    },
+    getStats: function(printername, successCallback, failureCallback) {
+        cordova.exec(successCallback, failureCallback, "PrinterService", "getStats", [printername]);
+    },
+    watchStats: function(printername, interval, successCallback, failureCallback) {
+        cordova.exec(successCallback, failureCallback, "PrinterService", "watchStats", [printername, interval || 0]);
+    },
+    cutPaper: function(printername, successCallback, failureCallback, priority) {
+        cordova.exec(successCallback, failureCallback, "PrinterService", "cutPaper", [printername, priority || "normal"]);
+    },
+    createGroup: function(groupname, printernames, mode, successCallback, failureCallback) {
+        cordova.exec(successCallback, failureCallback, "PrinterService", "createGroup", [groupname, printernames, mode || "balance"]);
+    },
+    removeGroup: function(groupname, successCallback, failureCallback) {
+        cordova.exec(successCallback, failureCallback, "PrinterService", "removeGroup", [groupname]);
+    },
+    subscribe: function(eventTypes, options, successCallback, failureCallback) {
+        cordova.exec(successCallback, failureCallback, "PrinterService", "subscribe", [eventTypes || [], options || {}]);
+    },
+    unsubscribe: function(successCallback, failureCallback) {
+        cordova.exec(successCallback, failureCallback, "PrinterService", "unsubscribe", []);
+    },
+    openCashBox: function(printername, successCallback, failureCallback) {
+        cordova.exec(successCallback, failureCallback, "PrinterService", "openCashBox", [printername]);
+    },
+    buzzer: function(printername, successCallback, failureCallback) {
+        cordova.exec(successCallback, failureCallback, "PrinterService", "buzzer", [printername]);
+    },
+    cancelJob: function(jobId, successCallback, failureCallback) {
+        cordova.exec(successCallback, failureCallback, "PrinterService", "cancelJob", [jobId]);
     },
 };
\ No newline at end of file